@@ -1,38 +1,73 @@
 package com.molina.cvmfs.catalog;
 
 import com.molina.cvmfs.catalog.exception.CatalogInitializationException;
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
 import com.molina.cvmfs.common.Common;
 import com.molina.cvmfs.common.DatabaseObject;
+import com.molina.cvmfs.common.DatabaseProfile;
 import com.molina.cvmfs.common.PathHash;
+import com.molina.cvmfs.common.PathHasher;
 import com.molina.cvmfs.directoryentry.Chunk;
+import com.molina.cvmfs.directoryentry.ChunkLoader;
 import com.molina.cvmfs.directoryentry.DirectoryEntry;
 import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
+import com.molina.cvmfs.directoryentry.Flags;
 import com.molina.cvmfs.directoryentry.exception.ChunkFileDoesNotMatch;
 
 import java.io.File;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Jose Molina Colmenero
  *         <p/>
- *         Wraps the basic functionality of CernVM-FS Catalogs
+ *         Wraps the basic functionality of CernVM-FS Catalogs.
+ *         Catalogs never change once published, so the entries and listings
+ *         found in them are kept in a bounded LRU cache, including the lookups
+ *         of paths that do not exist.
+ *         Lookups and listings can be run from several threads at once. With
+ *         a pool of more than one connection they also run in parallel.
  */
-public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWrapper> {
+public class Catalog extends DatabaseObject
+        implements Iterable<DirectoryEntryWrapper>, ChunkLoader {
 
     public static final String CATALOG_ROOT_PREFIX = "C";
+    public static final int DEFAULT_ENTRY_CACHE_SIZE = 4096;
+    public static final int DEFAULT_LISTING_CACHE_SIZE = 16 * 1024;
+    public static final int DEFAULT_LISTING_PAGE_SIZE = 4096;
     protected static final String LISTING_QUERY = "SELECT " + DirectoryEntry.catalogDatabaseFields() +
             " FROM catalog" +
             " WHERE parent_1 = ? AND" +
             " parent_2 = ?" +
             " ORDER BY name ASC;";
-    protected static final String NESTED_COUNT = "SELECT count(*) FROM nested_catalogs;";
+    protected static final String LISTING_ORDER_QUERY = "SELECT rowid FROM catalog" +
+            " WHERE parent_1 = ? AND" +
+            " parent_2 = ? AND" +
+            " name > ?" +
+            " ORDER BY name ASC;";
     protected static final String READ_CHUNK = "SELECT " + Chunk.catalogDatabaseFields() +
             " FROM chunks WHERE md5path_1 = ? AND md5path_2 = ? ORDER BY offset ASC";
+    protected static final String LISTING_CHUNKS = "SELECT chunks.md5path_1, chunks.md5path_2," +
+            " chunks.offset, chunks.size, chunks.hash" +
+            " FROM catalog JOIN chunks" +
+            " ON chunks.md5path_1 = catalog.md5path_1 AND chunks.md5path_2 = catalog.md5path_2" +
+            " WHERE catalog.parent_1 = ? AND catalog.parent_2 = ? AND" +
+            " (catalog.flags & " + Flags.FILE_CHUNK + ") != 0" +
+            " ORDER BY chunks.offset ASC;";
+    protected static final int FIND_BATCH_SIZE = 256;
+    protected static final String FIND_ROWIDS = "SELECT rowid, " + DirectoryEntry.catalogDatabaseFields() +
+            " FROM catalog WHERE rowid IN (" + parameterList(FIND_BATCH_SIZE) + ");";
+    protected static final String FIND_MD5_PATHS = "SELECT " + DirectoryEntry.catalogDatabaseFields() +
+            " FROM catalog WHERE md5path_1 IN (" + parameterList(FIND_BATCH_SIZE) + ");";
+    protected static final String COUNT_ENTRIES = "SELECT count(*) FROM catalog;";
+    protected static final String INDEX_ENTRIES = "SELECT " + DirectoryEntry.catalogDatabaseFields() +
+            " FROM catalog ORDER BY md5path_1, md5path_2;";
+    protected static final String INDEX_CHUNKS = "SELECT " + Chunk.catalogDatabaseFields() +
+            " FROM chunks ORDER BY md5path_1, md5path_2, offset;";
     protected static final String FIND_MD5_PATH = "SELECT " + DirectoryEntry.catalogDatabaseFields() +
             " FROM catalog WHERE md5path_1 = ? AND md5path_2 = ? LIMIT 1;";
     protected float schema;
@@ -42,37 +77,132 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
     protected Date lastModified;
     protected String rootPrefix;
     protected String previousRevision;
-    private PreparedStatement listStatement;
-    private PreparedStatement nestedCountStatement;
-    private PreparedStatement readChunkStatement;
-    private PreparedStatement findMd5PathStatement;
-    private PreparedStatement listNestedStatement;
+    protected LookupCache<DirectoryEntry> entryCache;
+    private volatile NestedCatalogIndex nestedIndex;
+    private volatile CatalogIndex index;
+    protected ListingCache listingCache;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Result of a lookup in a LookupCache
+     */
+    protected static class CachedValue<V> {
+        V value;
+    }
+
+    /**
+     * LRU map from path hashes to lookup results. Null values stand for
+     * paths that were not found. Its capacity is a total weight, which is
+     * one per value unless weigh is overridden
+     */
+    protected static class LookupCache<V> extends LinkedHashMap<PathHash, V> {
+        private static final long serialVersionUID = 1L;
+
+        private int capacity;
+        private long weight;
+
+        public LookupCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected int weigh(V value) {
+            return 1;
+        }
+
+        public synchronized boolean lookup(PathHash key, CachedValue<V> result) {
+            V value = get(key);
+            if (value == null && !containsKey(key))
+                return false;
+            result.value = value;
+            return true;
+        }
+
+        public synchronized void store(PathHash key, V value) {
+            int valueWeight = weigh(value);
+            if (valueWeight > capacity)
+                return;
+            boolean replaced = containsKey(key);
+            V previous = put(key, value);
+            if (replaced)
+                weight -= weigh(previous);
+            weight += valueWeight;
+            trim();
+        }
+
+        public synchronized void resize(int capacity) {
+            this.capacity = capacity;
+            trim();
+        }
+
+        private void trim() {
+            Iterator<V> iterator = values().iterator();
+            while (weight > capacity && iterator.hasNext()) {
+                weight -= weigh(iterator.next());
+                iterator.remove();
+            }
+        }
+
+        public synchronized void reset() {
+            clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Cache of directory listings bounded by the number of entries they
+     * hold, so that a few huge directories cannot take all the memory
+     */
+    protected static class ListingCache extends LookupCache<List<DirectoryEntry>> {
+        private static final long serialVersionUID = 1L;
+
+        public ListingCache(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected int weigh(List<DirectoryEntry> listing) {
+            return listing == null ? 1 : Math.max(1, listing.size());
+        }
+    }
 
     public Catalog(File databaseFile, String catalogHash)
             throws SQLException, CatalogInitializationException {
-        super(databaseFile);
+        this(databaseFile, catalogHash, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param databaseFile file of the catalog
+     * @param catalogHash  hash of the catalog
+     * @param poolSize     number of connections, and so of threads, that can
+     *                     query the catalog at the same time
+     */
+    public Catalog(File databaseFile, String catalogHash, int poolSize)
+            throws SQLException, CatalogInitializationException {
+        this(databaseFile, catalogHash, poolSize, new DatabaseProfile());
+    }
+
+    /**
+     * @param databaseFile file of the catalog
+     * @param catalogHash  hash of the catalog
+     * @param poolSize     number of connections, and so of threads, that can
+     *                     query the catalog at the same time
+     * @param profile      SQLite settings of the connections
+     */
+    public Catalog(File databaseFile, String catalogHash, int poolSize,
+                   DatabaseProfile profile)
+            throws SQLException, CatalogInitializationException {
+        super(databaseFile, poolSize, profile);
         hash = catalogHash;
+        entryCache = new LookupCache<>(DEFAULT_ENTRY_CACHE_SIZE);
+        listingCache = new ListingCache(DEFAULT_LISTING_CACHE_SIZE);
         schemaRevision = 0;
         readProperties();
         guessRootPrefixIfNeeded();
         guessLastModifiedIfNeeded();
         checkValidity();
-        prepareStatements();
-    }
-
-    private void prepareStatements() throws SQLException {
-        listStatement = createPreparedStatement(LISTING_QUERY);
-        nestedCountStatement = createPreparedStatement(NESTED_COUNT);
-        readChunkStatement = createPreparedStatement(READ_CHUNK);
-        findMd5PathStatement = createPreparedStatement(FIND_MD5_PATH);
-        boolean newVersion = (schema <= 1.2 && schemaRevision > 0);
-        String sqlQuery;
-        if (newVersion) {
-            sqlQuery = "SELECT path, sha1, size FROM nested_catalogs";
-        } else {
-            sqlQuery = "SELECT path, sha1 FROM nested_catalogs";
-        }
-        listNestedStatement = createPreparedStatement(sqlQuery);
+        loadIndex();
     }
 
     public float getSchema() {
@@ -176,39 +306,68 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
      * Returns the number of nested catalogs in the catalog
      *
      * @return the number of nested catalogs in this catalog
+     * @throws CatalogReadException if the nested catalogs cannot be read
      */
     public int nestedCount() {
-        ResultSet rs = null;
-        int numCatalogs = 0;
-        try {
-            rs = nestedCountStatement.executeQuery();
-            if (rs.next())
-                numCatalogs = rs.getInt(1);
-        } catch (SQLException e) {
-            return 0;
-        } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+        return getNestedIndex().size();
+    }
+
+    private void closeAndRelease(ResultSet rs, Session session) {
+        if (rs != null) {
+            try {
+                rs.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
         }
-        return numCatalogs;
+        if (session != null)
+            releaseSession(session);
     }
 
     /**
      * List CatalogReferences to all contained nested catalogs
      *
      * @return array of CatalogReference containing all nested catalogs in this catalog
+     * @throws CatalogReadException if the nested catalogs cannot be read, so
+     *                              that the failure is not mistaken for a
+     *                              catalog without nested catalogs
      */
     public CatalogReference[] listNested() {
+        return getNestedIndex().toArray();
+    }
+
+    /**
+     * Returns the index of the nested catalogs, reading them the first time.
+     * Catalogs never change, so the index is kept for the lifetime of the
+     * catalog. A failed read is not kept, so it is tried again next time
+     */
+    private NestedCatalogIndex getNestedIndex() {
+        NestedCatalogIndex index = nestedIndex;
+        if (index == null) {
+            index = new NestedCatalogIndex(readNested());
+            nestedIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return the nested catalogs in the database
+     * @throws CatalogReadException if they cannot be read
+     */
+    private CatalogReference[] readNested() {
         boolean newVersion = (schema <= 1.2 && schemaRevision > 0);
+        String sqlQuery;
+        if (newVersion) {
+            sqlQuery = "SELECT path, sha1, size FROM nested_catalogs";
+        } else {
+            sqlQuery = "SELECT path, sha1 FROM nested_catalogs";
+        }
+        Session session = null;
         ResultSet rs = null;
         ArrayList<CatalogReference> arr = new ArrayList<>();
         try {
-            rs = listNestedStatement.executeQuery();
+            session = acquireSession();
+            rs = session.prepare(sqlQuery).executeQuery();
             while (rs.next()) {
                 String path = rs.getString(1);
                 String sha1 = rs.getString(2);
@@ -218,15 +377,10 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
                 arr.add(new CatalogReference(path, sha1, size));
             }
         } catch (SQLException e) {
-            return new CatalogReference[0];
+            throw new CatalogReadException("Cannot read the nested catalogs of catalog " +
+                    hash, e);
         } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
-            }
+            closeAndRelease(rs, session);
         }
         return arr.toArray(new CatalogReference[arr.size()]);
     }
@@ -239,32 +393,15 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
         }
     }
 
-    private boolean pathSanitized(String needlePath, String catalogPath) {
-        return needlePath.length() == catalogPath.length() ||
-                (needlePath.length() > catalogPath.length() &&
-                needlePath.charAt(catalogPath.length()) == File.separatorChar);
-    }
-
     /**
      * Find the best matching nested CatalogReference for a given path
      *
      * @param needlePath path to search in the catalog
      * @return The catalogs that best matches the given path
+     * @throws CatalogReadException if the nested catalogs cannot be read
      */
     public CatalogReference findNestedForPath(String needlePath) {
-        CatalogReference[] catalogRefs = listNested();
-        CatalogReference bestMatch = null;
-        int bestMatchScore = 0;
-        String realNeedlePath = Common.canonicalizePath(needlePath);
-        for (CatalogReference nestedCatalog : catalogRefs) {
-            if (realNeedlePath.startsWith(nestedCatalog.getRootPath()) &&
-                    nestedCatalog.getRootPath().length() > bestMatchScore &&
-                    pathSanitized(needlePath, nestedCatalog.getRootPath())) {
-                bestMatchScore = nestedCatalog.getRootPath().length();
-                bestMatch = nestedCatalog;
-            }
-        }
-        return bestMatch;
+        return getNestedIndex().findLongestPrefix(Common.canonicalizePath(needlePath));
     }
 
     /**
@@ -277,16 +414,117 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
         String realPath = Common.canonicalizePath(path);
         if (realPath.equals(File.separator))
             realPath = "";
+        PathHasher hasher = PathHasher.get().hash(realPath);
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            PathHash parentHash = Common.splitMd5(md.digest(realPath.getBytes()));
-            return listDirectorySplitMd5(parentHash.getHash1(),
-                    parentHash.getHash2());
-        } catch (NoSuchAlgorithmException | SQLException e) {
+            return listDirectorySplitMd5(hasher.getHash1(), hasher.getHash2());
+        } catch (SQLException e) {
             return new ArrayList<>();
         }
     }
 
+    /**
+     * Opens a cursor over the entries of a directory, read in pages of
+     * DEFAULT_LISTING_PAGE_SIZE entries
+     *
+     * @param path path of the directory
+     * @return a cursor over the entries of the directory, in name order
+     */
+    public DirectoryListing openListing(String path) {
+        return openListing(path, null, DEFAULT_LISTING_PAGE_SIZE);
+    }
+
+    /**
+     * Opens a cursor over the entries of a directory. Unlike listDirectory,
+     * the entries are neither cached nor kept all in memory at once
+     *
+     * @param path      path of the directory
+     * @param afterName name after which the listing starts, or null to start
+     *                  from the first entry
+     * @param pageSize  maximum number of entries kept in memory, 0 or less to
+     *                  read the whole directory at once
+     * @return a cursor over the entries of the directory, in name order
+     */
+    public DirectoryListing openListing(String path, String afterName, int pageSize) {
+        String realPath = Common.canonicalizePath(path);
+        if (realPath.equals(File.separator))
+            realPath = "";
+        PathHasher hasher = PathHasher.get().hash(realPath);
+        return new DirectoryListing(this, hasher.getHash1(), hasher.getHash2(),
+                afterName, pageSize);
+    }
+
+    /**
+     * Reads the row ids of the entries of a directory whose names follow a
+     * given one, in name order. Catalogs only index entries by their parent,
+     * so the directory is sorted once here instead of once per page
+     *
+     * @param parent1   first part of the directory MD5 hash
+     * @param parent2   second part of the directory MD5 hash
+     * @param afterName the entries returned have names greater than this one
+     * @return the row ids of the entries, in name order
+     */
+    long[] readListingOrder(long parent1, long parent2, String afterName)
+            throws SQLException {
+        Session session = acquireSession();
+        ResultSet rs = null;
+        long[] rowids = new long[16];
+        int count = 0;
+        try {
+            PreparedStatement orderStatement = session.prepare(LISTING_ORDER_QUERY);
+            orderStatement.setLong(1, parent1);
+            orderStatement.setLong(2, parent2);
+            orderStatement.setString(3, afterName);
+            rs = orderStatement.executeQuery();
+            while (rs.next()) {
+                if (count == rowids.length)
+                    rowids = Arrays.copyOf(rowids, count * 2);
+                rowids[count++] = rs.getLong(1);
+            }
+        } finally {
+            closeAndRelease(rs, session);
+        }
+        return Arrays.copyOf(rowids, count);
+    }
+
+    /**
+     * Reads entries by their row ids, FIND_BATCH_SIZE of them per query
+     *
+     * @param rowids row ids read with readListingOrder
+     * @param from   position of the first row id to read
+     * @param to     position after the last row id to read
+     * @return the entries, in the order of their row ids
+     */
+    List<DirectoryEntry> readListingPage(long[] rowids, int from, int to)
+            throws SQLException {
+        Map<Long, DirectoryEntry> dirents = new HashMap<>();
+        Session session = acquireSession();
+        try {
+            PreparedStatement findStatement = session.prepare(FIND_ROWIDS);
+            for (int start = from; start < to; start += FIND_BATCH_SIZE) {
+                for (int i = 0; i < FIND_BATCH_SIZE; i++) {
+                    // the last batch is filled up by repeating its first row id
+                    findStatement.setLong(i + 1, rowids[start + i < to ? start + i : start]);
+                }
+                ResultSet rs = findStatement.executeQuery();
+                try {
+                    while (rs.next())
+                        dirents.put(rs.getLong(1), makeDirectoryEntry(rs));
+                } finally {
+                    closeAndRelease(rs, null);
+                }
+            }
+        } finally {
+            releaseSession(session);
+        }
+        List<DirectoryEntry> page = new ArrayList<>(to - from);
+        for (int position = from; position < to; position++) {
+            DirectoryEntry dirent = dirents.get(rowids[position]);
+            if (dirent != null)
+                page.add(dirent);
+        }
+        return page;
+    }
+
     @Override
     public boolean open() {
         boolean result = super.open();
@@ -295,7 +533,7 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
             guessRootPrefixIfNeeded();
             guessLastModifiedIfNeeded();
             checkValidity();
-            prepareStatements();
+            loadIndex();
         } catch (SQLException e) {
             result = false;
         } catch (CatalogInitializationException e) {
@@ -307,18 +545,41 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
 
     @Override
     public boolean close() {
-        boolean result = true;
-        try {
-            findMd5PathStatement.close();
-            listNestedStatement.close();
-            listStatement.close();
-            nestedCountStatement.close();
-            readChunkStatement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            result = false;
-        }
-        return result && super.close();
+        index = null;
+        clearLookupCache();
+        return super.close();
+    }
+
+    /**
+     * Sets the maximum number of entries and listings kept in the lookup
+     * cache, evicting the least recently used ones if needed
+     *
+     * @param entries        maximum number of DirectoryEntry lookups
+     * @param listingEntries maximum number of DirectoryEntries in all the
+     *                       directory listings together
+     */
+    public void setLookupCacheSize(int entries, int listingEntries) {
+        entryCache.resize(entries);
+        listingCache.resize(listingEntries);
+    }
+
+    public void clearLookupCache() {
+        entryCache.reset();
+        listingCache.reset();
+    }
+
+    /**
+     * @return number of entries and listings served from the lookup cache
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return number of entries and listings read from the database
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
     }
 
     /**
@@ -326,47 +587,175 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
      *
      * @param parent1 first part of the parent MD5 hash
      * @param parent2 second part of the parent MD5 hash
+     * @return an unmodifiable list of the entries in the directory
      */
     public List<DirectoryEntry> listDirectorySplitMd5(long parent1, long parent2)
             throws SQLException {
-        listStatement.setLong(1, parent1);
-        listStatement.setLong(2, parent2);
-        ResultSet rs = listStatement.executeQuery();
+        PathHash parentHash = new PathHash(parent1, parent2);
+        CachedValue<List<DirectoryEntry>> cached = new CachedValue<>();
+        if (listingCache.lookup(parentHash, cached)) {
+            cacheHits.incrementAndGet();
+            return cached.value;
+        }
+        cacheMisses.incrementAndGet();
+        List<DirectoryEntry> listing = Collections.unmodifiableList(
+                readDirectorySplitMd5(parent1, parent2));
+        listingCache.store(parentHash, listing);
+        return listing;
+    }
+
+    /**
+     * Reads a directory listing without going through the lookup cache, for
+     * walks of the whole catalog that would only flush it
+     *
+     * @param parent1 first part of the parent MD5 hash
+     * @param parent2 second part of the parent MD5 hash
+     * @return the entries in the directory
+     */
+    List<DirectoryEntry> readDirectory(long parent1, long parent2) throws SQLException {
+        CachedValue<List<DirectoryEntry>> cached = new CachedValue<>();
+        if (listingCache.lookup(new PathHash(parent1, parent2), cached))
+            return cached.value;
+        return readDirectorySplitMd5(parent1, parent2);
+    }
+
+    private List<DirectoryEntry> readDirectorySplitMd5(long parent1, long parent2)
+            throws SQLException {
+        Session session = acquireSession();
+        ResultSet rs = null;
         ArrayList<DirectoryEntry> arr = new ArrayList<>();
-        while (rs.next()) {
-            arr.add(makeDirectoryEntry(rs));
+        try {
+            PreparedStatement listStatement = session.prepare(LISTING_QUERY);
+            listStatement.setLong(1, parent1);
+            listStatement.setLong(2, parent2);
+            rs = listStatement.executeQuery();
+            ListingChunkLoader listingChunkLoader = null;
+            while (rs.next()) {
+                DirectoryEntry dirent = new DirectoryEntry(rs);
+                if (dirent.isChunkedFile()) {
+                    if (listingChunkLoader == null)
+                        listingChunkLoader = new ListingChunkLoader(parent1, parent2);
+                    listingChunkLoader.add(dirent);
+                }
+                arr.add(dirent);
+            }
+        } finally {
+            closeAndRelease(rs, session);
         }
-        rs.close();
         return arr;
     }
 
+    /**
+     * Loads the chunks of all the chunked files of a directory listing with
+     * a single query, the first time the chunks of any of them are requested
+     */
+    protected class ListingChunkLoader implements ChunkLoader {
+        private final long parent1;
+        private final long parent2;
+        private Map<PathHash, DirectoryEntry> chunkedFiles;
+
+        ListingChunkLoader(long parent1, long parent2) {
+            this.parent1 = parent1;
+            this.parent2 = parent2;
+            this.chunkedFiles = new HashMap<>();
+        }
+
+        void add(DirectoryEntry dirent) {
+            chunkedFiles.put(dirent.pathHash(), dirent);
+            dirent.setChunkLoader(this);
+        }
+
+        public synchronized List<Chunk> loadChunks(DirectoryEntry dirent)
+                throws SQLException {
+            Map<PathHash, List<Chunk>> listingChunks = readListingChunks(parent1, parent2,
+                    chunkedFiles);
+            for (Map.Entry<PathHash, DirectoryEntry> chunkedFile : chunkedFiles.entrySet()) {
+                List<Chunk> chunks = listingChunks.get(chunkedFile.getKey());
+                chunkedFile.getValue().setChunks(chunks == null ?
+                        Collections.<Chunk>emptyList() : chunks);
+            }
+            return dirent.getChunks();
+        }
+    }
+
+    /**
+     * Reads the chunks of all the chunked files of a directory at once
+     *
+     * @param parent1      first part of the directory MD5 hash
+     * @param parent2      second part of the directory MD5 hash
+     * @param chunkedFiles chunked files of the directory by path hash
+     * @return the chunks of every chunked file by path hash
+     */
+    private Map<PathHash, List<Chunk>> readListingChunks(long parent1, long parent2,
+                                                          Map<PathHash, DirectoryEntry> chunkedFiles)
+            throws SQLException {
+        Map<PathHash, List<Chunk>> listingChunks = new HashMap<>();
+        if (schema < 2.4)
+            return listingChunks;
+        Session session = acquireSession();
+        ResultSet rs = null;
+        try {
+            PreparedStatement listChunksStatement = session.prepare(LISTING_CHUNKS);
+            listChunksStatement.setLong(1, parent1);
+            listChunksStatement.setLong(2, parent2);
+            rs = listChunksStatement.executeQuery();
+            while (rs.next()) {
+                PathHash pathHash = new PathHash(rs.getLong(1), rs.getLong(2));
+                DirectoryEntry dirent = chunkedFiles.get(pathHash);
+                if (dirent == null)
+                    continue;
+                List<Chunk> chunks = listingChunks.get(pathHash);
+                if (chunks == null) {
+                    chunks = new ArrayList<>();
+                    listingChunks.put(pathHash, chunks);
+                }
+                Object[] chunkData = new Object[5];
+                for (int i = 0; i < chunkData.length; i++)
+                    chunkData[i] = rs.getObject(i + 1);
+                chunks.add(new Chunk(chunkData, dirent.getContentHashType()));
+            }
+        } catch (ChunkFileDoesNotMatch e) {
+            e.printStackTrace();
+        } finally {
+            closeAndRelease(rs, session);
+        }
+        return listingChunks;
+    }
+
     private DirectoryEntry makeDirectoryEntry(ResultSet rs)
             throws SQLException {
         if (rs != null && !rs.isClosed()) {
             DirectoryEntry dirent = new DirectoryEntry(rs);
-            readChunks(dirent);
+            if (dirent.isChunkedFile())
+                dirent.setChunkLoader(this);
             return dirent;
         }
         return null;
     }
 
     /**
-     * Finds and adds the file chunk of a DirectoryEntry
+     * Reads the chunks of a chunked file found in this catalog
      *
      * @param dirent DirectoryEntry that contains chunks
+     * @return the chunks of the file ordered by offset
+     * @throws SQLException if the catalog has been closed meanwhile
      */
-    private void readChunks(DirectoryEntry dirent) throws SQLException {
+    public List<Chunk> loadChunks(DirectoryEntry dirent) throws SQLException {
         if (schema < 2.4)
-            return;
-        readChunkStatement.setLong(1, dirent.getMd5path_1());
-        readChunkStatement.setLong(2, dirent.getMd5path_2());
-        ResultSet rs = readChunkStatement.executeQuery();
+            return Collections.emptyList();
+        Session session = acquireSession();
+        ResultSet rs = null;
         try {
-            dirent.addChunks(rs);
+            PreparedStatement readChunkStatement = session.prepare(READ_CHUNK);
+            readChunkStatement.setLong(1, dirent.getMd5path_1());
+            readChunkStatement.setLong(2, dirent.getMd5path_2());
+            rs = readChunkStatement.executeQuery();
+            return DirectoryEntry.readChunks(rs, dirent.getContentHashType());
         } catch (ChunkFileDoesNotMatch e) {
-            e.printStackTrace();
+            throw new SQLException(e);
+        } finally {
+            closeAndRelease(rs, session);
         }
-        rs.close();
     }
 
     /**
@@ -377,25 +766,7 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
      */
     public DirectoryEntry findDirectoryEntry(String rootPath) {
         String realPath = Common.canonicalizePath(rootPath);
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] md5Path = md.digest(realPath.getBytes());
-            return findDirectoryEntryMd5(md5Path);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    /**
-     * Finds a DirectoryEntry for a given Md5 hashed path
-     *
-     * @param md5Path md5 path of the DirectoryEntry to find
-     * @return the DirectoryEntry that corresponds to md5Path, or null if not found
-     */
-    private DirectoryEntry findDirectoryEntryMd5(byte[] md5Path) {
-        PathHash pathHash = Common.splitMd5(md5Path);
-        return findDirectoryEntrySplitMd5(pathHash);
+        return findDirectoryEntrySplitMd5(PathHasher.get().hash(realPath).toPathHash());
     }
 
     /**
@@ -405,29 +776,205 @@ public class Catalog extends DatabaseObject implements Iterable<DirectoryEntryWr
      * @return the DirectoryEntry that corresponds to pathHash, or null if not found
      */
     private DirectoryEntry findDirectoryEntrySplitMd5(PathHash pathHash) {
+        CachedValue<DirectoryEntry> cached = new CachedValue<>();
+        if (entryCache.lookup(pathHash, cached)) {
+            cacheHits.incrementAndGet();
+            return cached.value;
+        }
+        cacheMisses.incrementAndGet();
+        CatalogIndex currentIndex = index;
+        if (currentIndex != null) {
+            try {
+                DirectoryEntry dirent = currentIndex.find(pathHash.getHash1(),
+                        pathHash.getHash2());
+                entryCache.store(pathHash, dirent);
+                return dirent;
+            } catch (RuntimeException e) {
+                // a damaged index, keep reading from the database
+                e.printStackTrace();
+                index = null;
+            }
+        }
+        Session session = null;
         ResultSet rs = null;
         try {
+            session = acquireSession();
+            PreparedStatement findMd5PathStatement = session.prepare(FIND_MD5_PATH);
             findMd5PathStatement.setLong(1, pathHash.getHash1());
             findMd5PathStatement.setLong(2, pathHash.getHash2());
             rs = findMd5PathStatement.executeQuery();
-            rs.next();
-            return makeDirectoryEntry(rs);
+            DirectoryEntry dirent = rs.next() ? makeDirectoryEntry(rs) : null;
+            entryCache.store(pathHash, dirent);
+            return dirent;
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            if (rs != null) {
+            closeAndRelease(rs, session);
+        }
+        return null;
+    }
+
+    private static String parameterList(int count) {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            parameters.append(i == 0 ? "?" : ", ?");
+        return parameters.toString();
+    }
+
+    /**
+     * Finds the DirectoryEntries of many paths at once. The paths that are
+     * not cached are read with one query per FIND_BATCH_SIZE paths
+     *
+     * @param rootPaths relative paths of the DirectoryEntries to find
+     * @return a map from every given path to its DirectoryEntry, or to null
+     * if the path is not found
+     * @throws CatalogReadException if the entries cannot be read
+     */
+    public Map<String, DirectoryEntry> findDirectoryEntries(Collection<String> rootPaths) {
+        Map<String, DirectoryEntry> found = new LinkedHashMap<>();
+        Map<PathHash, List<String>> pending = new HashMap<>();
+        CachedValue<DirectoryEntry> cached = new CachedValue<>();
+        for (String rootPath : rootPaths) {
+            found.put(rootPath, null);
+            PathHash pathHash = PathHasher.get().hash(
+                    Common.canonicalizePath(rootPath)).toPathHash();
+            if (entryCache.lookup(pathHash, cached)) {
+                cacheHits.incrementAndGet();
+                found.put(rootPath, cached.value);
+                continue;
+            }
+            List<String> paths = pending.get(pathHash);
+            if (paths == null) {
+                paths = new ArrayList<>(1);
+                pending.put(pathHash, paths);
+            }
+            paths.add(rootPath);
+        }
+        if (pending.isEmpty())
+            return found;
+        cacheMisses.addAndGet(pending.size());
+        Map<PathHash, DirectoryEntry> dirents;
+        try {
+            dirents = readDirectoryEntries(pending.keySet());
+        } catch (SQLException e) {
+            throw new CatalogReadException("Cannot read the entries of catalog " + hash, e);
+        }
+        for (Map.Entry<PathHash, List<String>> entry : pending.entrySet()) {
+            DirectoryEntry dirent = dirents.get(entry.getKey());
+            entryCache.store(entry.getKey(), dirent);
+            for (String rootPath : entry.getValue())
+                found.put(rootPath, dirent);
+        }
+        return found;
+    }
+
+    /**
+     * Reads the DirectoryEntries of many path hashes, from the lookup index if
+     * there is one, or else in batches of FIND_BATCH_SIZE. Each batch matches
+     * md5path_1 in the database and md5path_2 afterwards
+     *
+     * @param pathHashes hashes of the paths to find
+     * @return the DirectoryEntries found by path hash
+     */
+    private Map<PathHash, DirectoryEntry> readDirectoryEntries(Set<PathHash> pathHashes)
+            throws SQLException {
+        Map<PathHash, DirectoryEntry> dirents = new HashMap<>();
+        CatalogIndex currentIndex = index;
+        if (currentIndex != null) {
+            try {
+                for (PathHash pathHash : pathHashes) {
+                    DirectoryEntry dirent = currentIndex.find(pathHash.getHash1(),
+                            pathHash.getHash2());
+                    if (dirent != null)
+                        dirents.put(pathHash, dirent);
+                }
+                return dirents;
+            } catch (RuntimeException e) {
+                // a damaged index, keep reading from the database
+                e.printStackTrace();
+                index = null;
+                dirents.clear();
+            }
+        }
+        List<PathHash> hashes = new ArrayList<>(pathHashes);
+        Session session = acquireSession();
+        try {
+            PreparedStatement findStatement = session.prepare(FIND_MD5_PATHS);
+            for (int start = 0; start < hashes.size(); start += FIND_BATCH_SIZE) {
+                for (int i = 0; i < FIND_BATCH_SIZE; i++) {
+                    // the last batch is filled up by repeating its first hash
+                    int position = start + i < hashes.size() ? start + i : start;
+                    findStatement.setLong(i + 1, hashes.get(position).getHash1());
+                }
+                ResultSet rs = findStatement.executeQuery();
                 try {
-                    rs.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
+                    while (rs.next()) {
+                        DirectoryEntry dirent = makeDirectoryEntry(rs);
+                        PathHash pathHash = dirent.pathHash();
+                        if (pathHashes.contains(pathHash))
+                            dirents.put(pathHash, dirent);
+                    }
+                } finally {
+                    closeAndRelease(rs, null);
                 }
             }
+        } finally {
+            releaseSession(session);
+        }
+        return dirents;
+    }
+
+    /**
+     * Maps the lookup index of this catalog, if it has been written, so that
+     * findDirectoryEntry is answered without querying the database
+     *
+     * @return true if the index is in use
+     */
+    public boolean loadIndex() {
+        index = CatalogIndex.open(CatalogIndex.fileFor(databaseFile), hash);
+        return index != null;
+    }
+
+    public boolean hasIndex() {
+        return index != null;
+    }
+
+    /**
+     * Writes the lookup index of this catalog. It is used once the file is
+     * moved next to the catalog file, where CatalogIndex.fileFor places it,
+     * and loadIndex is called or the catalog is opened again
+     *
+     * @param indexFile where to write the index
+     */
+    public void writeIndex(File indexFile) throws SQLException, IOException {
+        Session session = acquireSession();
+        ResultSet count = null;
+        ResultSet entries = null;
+        ResultSet chunks = null;
+        try {
+            count = session.prepare(COUNT_ENTRIES).executeQuery();
+            int entryCount = count.next() ? count.getInt(1) : 0;
+            entries = session.prepare(INDEX_ENTRIES).executeQuery();
+            if (schema >= 2.4)
+                chunks = session.prepare(INDEX_CHUNKS).executeQuery();
+            CatalogIndex.write(indexFile, hash, entryCount, entries, chunks);
+        } finally {
+            closeAndRelease(count, null);
+            closeAndRelease(chunks, null);
+            closeAndRelease(entries, session);
         }
-        return null;
     }
 
     public Iterator<DirectoryEntryWrapper> iterator() {
         return new CatalogIterator(this);
     }
 
+    /**
+     * @return a splitter over all the entries of this catalog, that can be
+     * split to walk the catalog from several threads
+     */
+    public CatalogSplitter splitter() {
+        return new CatalogSplitter(this, false);
+    }
+
 }
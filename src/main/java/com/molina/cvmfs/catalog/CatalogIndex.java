@@ -0,0 +1,307 @@
+package com.molina.cvmfs.catalog;
+
+import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.directoryentry.Chunk;
+import com.molina.cvmfs.directoryentry.DirectoryEntry;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Read-only lookup index of all the entries of a catalog, stored in a
+ *         file that is memory-mapped. It is an open-addressed hash table keyed
+ *         by the MD5 of the paths, whose slots point to packed records with
+ *         the fields of the entries and their chunks. Catalogs never change,
+ *         so an index written for a catalog hash is valid forever.
+ *         <p/>
+ *         Layout, big endian: a header with the magic number, the version, the
+ *         number of slots and of entries, the offsets of the slots and of the
+ *         records and the catalog hash; then the slots, made of md5path_1,
+ *         md5path_2 and the offset of the record, or -1 if the slot is empty;
+ *         and then the records.
+ */
+public class CatalogIndex {
+
+    public static final String INDEX_SUFFIX = ".idx";
+    private static final int MAGIC = 0x43564958;
+    private static final int VERSION = 1;
+    private static final int SLOT_SIZE = 20;
+    private static final int EMPTY_SLOT = -1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+    private final int slotMask;
+    private final int entryCount;
+    private final int slotsOffset;
+    private final int recordsOffset;
+
+    private CatalogIndex(MappedByteBuffer buffer, int slotCount, int entryCount,
+                         int slotsOffset, int recordsOffset) {
+        this.buffer = buffer;
+        this.slotMask = slotCount - 1;
+        this.entryCount = entryCount;
+        this.slotsOffset = slotsOffset;
+        this.recordsOffset = recordsOffset;
+    }
+
+    /**
+     * @param databaseFile file of a catalog
+     * @return where the index of the catalog is stored
+     */
+    public static File fileFor(File databaseFile) {
+        return new File(databaseFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Maps the index of a catalog in memory
+     *
+     * @param indexFile   file of the index
+     * @param catalogHash hash of the catalog the index must belong to
+     * @return the index, or null if the file does not exist or does not
+     * contain a valid index of that catalog
+     */
+    public static CatalogIndex open(File indexFile, String catalogHash) {
+        if (!indexFile.isFile())
+            return null;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(indexFile, "r");
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, file.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+            int slotCount = buffer.getInt();
+            int entryCount = buffer.getInt();
+            int slotsOffset = buffer.getInt();
+            int recordsOffset = buffer.getInt();
+            byte[] hash = new byte[buffer.getShort()];
+            buffer.get(hash);
+            if (!new String(hash, UTF8).equals(catalogHash) ||
+                    Integer.bitCount(slotCount) != 1)
+                return null;
+            return new CatalogIndex(buffer, slotCount, entryCount, slotsOffset,
+                    recordsOffset);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    // the mapping stays valid once the file is closed
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of entries in the index
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    private static int firstSlot(long md5path_1, int slotMask) {
+        return (int) (md5path_1 ^ (md5path_1 >>> 32)) & slotMask;
+    }
+
+    /**
+     * Finds an entry by the MD5 of its path. Several threads can look up
+     * entries at once
+     *
+     * @param md5path_1 first part of the path MD5 hash
+     * @param md5path_2 second part of the path MD5 hash
+     * @return the entry, with its chunks if it is a chunked file, or null if
+     * the catalog does not contain the path
+     */
+    public DirectoryEntry find(long md5path_1, long md5path_2) {
+        int slot = firstSlot(md5path_1, slotMask);
+        while (true) {
+            int position = slotsOffset + slot * SLOT_SIZE;
+            int record = buffer.getInt(position + 16);
+            if (record == EMPTY_SLOT)
+                return null;
+            if (buffer.getLong(position) == md5path_1 &&
+                    buffer.getLong(position + 8) == md5path_2)
+                return readEntry(md5path_1, md5path_2, recordsOffset + record);
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    private DirectoryEntry readEntry(long md5path_1, long md5path_2, int position) {
+        // the shared buffer is only read with absolute gets, so every reader
+        // walks the record through its own view
+        ByteBuffer record = buffer.duplicate();
+        record.position(position);
+        long parent_1 = record.getLong();
+        long parent_2 = record.getLong();
+        int flags = record.getInt();
+        long size = record.getLong();
+        int mode = record.getInt();
+        long mtime = record.getLong();
+        byte[] hash = readBytes(record);
+        byte[] name = readBytes(record);
+        byte[] symlink = readBytes(record);
+        DirectoryEntry dirent = new DirectoryEntry(md5path_1, md5path_2, parent_1, parent_2,
+                hash == null ? null : Common.binaryBufferToHexString(hash), flags, size,
+                mode, mtime, name == null ? null : new String(name, UTF8),
+                symlink == null ? null : new String(symlink, UTF8));
+        int chunkCount = record.getInt();
+        if (dirent.isChunkedFile()) {
+            List<Chunk> chunks = new ArrayList<>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                long offset = record.getLong();
+                long chunkSize = record.getLong();
+                byte[] chunkHash = readBytes(record);
+                chunks.add(new Chunk(offset, chunkSize,
+                        chunkHash == null ? null : Common.binaryBufferToHexString(chunkHash),
+                        dirent.getContentHashType()));
+            }
+            dirent.setChunks(chunks);
+        }
+        return dirent;
+    }
+
+    private static byte[] readBytes(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the index of a catalog
+     *
+     * @param indexFile   where to write the index
+     * @param catalogHash hash of the catalog
+     * @param entryCount  number of entries in the catalog
+     * @param entries     all the entries of the catalog, with the fields of
+     *                    DirectoryEntry.catalogDatabaseFields(), ordered by path hash
+     * @param chunks      all the chunks of the catalog, with the fields of
+     *                    Chunk.catalogDatabaseFields(), ordered by path hash and
+     *                    offset, or null if the catalog has no chunks table
+     */
+    static void write(File indexFile, String catalogHash, int entryCount,
+                      ResultSet entries, ResultSet chunks)
+            throws IOException, SQLException {
+        int slotCount = Integer.highestOneBit(Math.max(16, entryCount * 2 - 1)) << 1;
+        byte[] hash = catalogHash.getBytes(UTF8);
+        int slotsOffset = 6 * 4 + 2 + hash.length;
+        long recordsOffset = slotsOffset + (long) slotCount * SLOT_SIZE;
+        if (recordsOffset > Integer.MAX_VALUE)
+            throw new IOException("Too many entries to be indexed");
+        long[] slotHashes = new long[slotCount * 2];
+        int[] slotRecords = new int[slotCount];
+        Arrays.fill(slotRecords, EMPTY_SLOT);
+
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.setLength(0);
+            file.seek(recordsOffset);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file.getFD())));
+            boolean hasChunk = chunks != null && chunks.next();
+            int written = 0;
+            while (entries.next()) {
+                if (written == entryCount)
+                    throw new IOException("The catalog has more entries than expected");
+                long md5path_1 = entries.getLong(1);
+                long md5path_2 = entries.getLong(2);
+                // the count of DataOutputStream saturates, which is caught here
+                long record = out.size();
+                if (recordsOffset + record >= Integer.MAX_VALUE)
+                    throw new IOException("Too many entries to be indexed");
+                int slot = firstSlot(md5path_1, slotCount - 1);
+                while (slotRecords[slot] != EMPTY_SLOT)
+                    slot = (slot + 1) & (slotCount - 1);
+                slotHashes[2 * slot] = md5path_1;
+                slotHashes[2 * slot + 1] = md5path_2;
+                slotRecords[slot] = (int) record;
+
+                out.writeLong(entries.getLong(3));
+                out.writeLong(entries.getLong(4));
+                out.writeInt(entries.getInt(6));
+                out.writeLong(entries.getLong(7));
+                out.writeInt(entries.getInt(8));
+                out.writeLong(entries.getLong(9));
+                writeBytes(out, entries.getBytes(5));
+                String name = entries.getString(10);
+                writeBytes(out, name == null ? null : name.getBytes(UTF8));
+                String symlink = entries.getString(11);
+                writeBytes(out, symlink == null ? null : symlink.getBytes(UTF8));
+
+                // both result sets are ordered by path hash, so the chunks of
+                // an entry are the ones at the cursor of the chunks
+                while (hasChunk && compare(chunks.getLong(1), chunks.getLong(2),
+                        md5path_1, md5path_2) < 0)
+                    hasChunk = chunks.next();
+                ByteArrayOutputStream chunkRecords = new ByteArrayOutputStream();
+                DataOutputStream chunkOut = new DataOutputStream(chunkRecords);
+                int chunkCount = 0;
+                while (hasChunk && chunks.getLong(1) == md5path_1 &&
+                        chunks.getLong(2) == md5path_2) {
+                    chunkOut.writeLong(chunks.getLong(3));
+                    chunkOut.writeLong(chunks.getLong(4));
+                    writeBytes(chunkOut, chunks.getBytes(5));
+                    chunkCount++;
+                    hasChunk = chunks.next();
+                }
+                out.writeInt(chunkCount);
+                chunkRecords.writeTo(out);
+                written++;
+            }
+            out.flush();
+            if (written != entryCount)
+                throw new IOException("The catalog has fewer entries than expected");
+
+            file.seek(0);
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file.getFD())));
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(slotCount);
+            header.writeInt(entryCount);
+            header.writeInt(slotsOffset);
+            header.writeInt((int) recordsOffset);
+            header.writeShort(hash.length);
+            header.write(hash);
+            for (int slot = 0; slot < slotCount; slot++) {
+                header.writeLong(slotHashes[2 * slot]);
+                header.writeLong(slotHashes[2 * slot + 1]);
+                header.writeInt(slotRecords[slot]);
+            }
+            header.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static int compare(long a1, long a2, long b1, long b2) {
+        int comparison = Long.compare(a1, b1);
+        return comparison != 0 ? comparison : Long.compare(a2, b2);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
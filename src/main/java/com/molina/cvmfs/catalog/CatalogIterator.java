@@ -1,6 +1,7 @@
 package com.molina.cvmfs.catalog;
 
 
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
 import com.molina.cvmfs.directoryentry.DirectoryEntry;
 import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
 
@@ -12,7 +13,9 @@ import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Iterates through all directory entries of a Catalog
+ * Iterates through all directory entries of a Catalog. A directory that
+ * cannot be read makes it throw a CatalogReadException, rather than leaving
+ * out the entries below it
  */
 public class CatalogIterator implements Iterator<DirectoryEntryWrapper> {
 
@@ -26,9 +29,11 @@ public class CatalogIterator implements Iterator<DirectoryEntryWrapper> {
         if (!this.catalog.isRoot()) {
             rootPath = this.catalog.getRootPrefix();
         }
-        DirectoryEntryWrapper rootFile =
-                new DirectoryEntryWrapper(catalog.findDirectoryEntry(rootPath), rootPath);
-        push(rootFile);
+        DirectoryEntry root = catalog.findDirectoryEntry(rootPath);
+        if (root == null)
+            throw new CatalogReadException("Cannot read the root entry of catalog " +
+                    catalog.getHash(), null);
+        push(new DirectoryEntryWrapper(root, rootPath));
     }
 
     public Catalog getCatalog() {
@@ -63,7 +68,7 @@ public class CatalogIterator implements Iterator<DirectoryEntryWrapper> {
         DirectoryEntry dirent = wrapper.getDirectoryEntry();
         if (dirent.isDirectory()) {
             try {
-                List<DirectoryEntry> newDirents = catalog.listDirectorySplitMd5(
+                List<DirectoryEntry> newDirents = catalog.readDirectory(
                         dirent.getMd5path_1(),
                         dirent.getMd5path_2()
                 );
@@ -73,7 +78,8 @@ public class CatalogIterator implements Iterator<DirectoryEntryWrapper> {
                                     newDirent.getName()));
                 }
             } catch (SQLException e) {
-                e.printStackTrace();
+                throw new CatalogReadException("Cannot read the directory " +
+                        wrapper.getPath() + " of catalog " + catalog.getHash(), e);
             }
         }
         return wrapper;
@@ -0,0 +1,177 @@
+package com.molina.cvmfs.catalog;
+
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
+import com.molina.cvmfs.catalog.exception.CounterNotFound;
+import com.molina.cvmfs.directoryentry.DirectoryEntry;
+import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Iterates through the directory entries of a Catalog, like
+ *         CatalogIterator, and can hand part of the remaining entries to a new
+ *         splitter so that several threads walk the catalog at once. It splits
+ *         at directory boundaries: the directories and files waiting to be
+ *         walked are shared out, so the contents of a large directory end up
+ *         divided among splitters. The remaining number of entries is
+ *         estimated from the CatalogStatistics of the catalog.
+ *         <p/>
+ *         The contract follows java.util.Spliterator, which is not available
+ *         in Java 7, so that it can be adapted to a stream on newer platforms.
+ *         A splitter is used by one thread at a time. A directory that cannot
+ *         be read makes it throw a CatalogReadException, rather than leaving
+ *         out the entries below it.
+ */
+public class CatalogSplitter implements Iterator<DirectoryEntryWrapper> {
+
+    private final Catalog catalog;
+    private final boolean skipMountpoints;
+    private final Deque<PendingEntry> backlog;
+    private long remaining;
+
+    private static class PendingEntry {
+        final DirectoryEntryWrapper wrapper;
+        boolean expanded;
+
+        PendingEntry(DirectoryEntryWrapper wrapper) {
+            this.wrapper = wrapper;
+        }
+    }
+
+    /**
+     * @param catalog         catalog to walk
+     * @param skipMountpoints true to leave out the mountpoints of the nested
+     *                        catalogs, whose entries are in the nested catalogs
+     */
+    public CatalogSplitter(Catalog catalog, boolean skipMountpoints) {
+        this(catalog, skipMountpoints, new ArrayDeque<PendingEntry>(),
+                countEntries(catalog));
+        String rootPath = catalog.isRoot() ? "" : catalog.getRootPrefix();
+        DirectoryEntry root = catalog.findDirectoryEntry(rootPath);
+        if (root == null)
+            throw new CatalogReadException("Cannot read the root entry of catalog " +
+                    catalog.getHash(), null);
+        backlog.add(new PendingEntry(new DirectoryEntryWrapper(root, rootPath)));
+    }
+
+    private CatalogSplitter(Catalog catalog, boolean skipMountpoints,
+                            Deque<PendingEntry> backlog, long remaining) {
+        this.catalog = catalog;
+        this.skipMountpoints = skipMountpoints;
+        this.backlog = backlog;
+        this.remaining = remaining;
+    }
+
+    /**
+     * @return the number of entries in the catalog, or -1 if it has no
+     * statistics
+     */
+    private static long countEntries(Catalog catalog) {
+        CatalogStatistics statistics = catalog.getStatistics();
+        if (statistics == null)
+            return -1;
+        try {
+            return statistics.numEntries();
+        } catch (CounterNotFound e) {
+            return -1;
+        }
+    }
+
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    public boolean hasNext() {
+        if (skipMountpoints) {
+            // mountpoints have no entries below them in this catalog
+            while (!backlog.isEmpty() &&
+                    backlog.peekFirst().wrapper.getDirectoryEntry().isNestedCatalogMountpoint()) {
+                backlog.removeFirst();
+                consumed();
+            }
+        }
+        return !backlog.isEmpty();
+    }
+
+    public DirectoryEntryWrapper next() {
+        if (!hasNext())
+            throw new NoSuchElementException("No more elements");
+        PendingEntry pending = backlog.removeFirst();
+        if (!pending.expanded)
+            expand(pending);
+        consumed();
+        return pending.wrapper;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Cannot remove an element");
+    }
+
+    private void consumed() {
+        if (remaining > 0)
+            remaining--;
+    }
+
+    /**
+     * Queues the contents of a directory in front of the backlog, in name
+     * order
+     */
+    private void expand(PendingEntry pending) {
+        pending.expanded = true;
+        DirectoryEntry dirent = pending.wrapper.getDirectoryEntry();
+        if (!dirent.isDirectory())
+            return;
+        try {
+            List<DirectoryEntry> contents = catalog.readDirectory(
+                    dirent.getMd5path_1(), dirent.getMd5path_2());
+            for (int i = contents.size() - 1; i >= 0; i--) {
+                DirectoryEntry child = contents.get(i);
+                backlog.addFirst(new PendingEntry(new DirectoryEntryWrapper(child,
+                        pending.wrapper.getPath() + File.separator + child.getName())));
+            }
+        } catch (SQLException e) {
+            throw new CatalogReadException("Cannot read the directory " +
+                    pending.wrapper.getPath() + " of catalog " + catalog.getHash(), e);
+        }
+    }
+
+    /**
+     * Hands about half of the remaining entries to a new splitter. If only a
+     * directory is left, its contents are queued first, without walking it
+     *
+     * @return a splitter over the entries handed over, or null if the
+     * remaining entries cannot be split
+     */
+    public CatalogSplitter trySplit() {
+        if (backlog.size() == 1 && !backlog.peekFirst().expanded) {
+            PendingEntry directory = backlog.removeFirst();
+            expand(directory);
+            backlog.addFirst(directory);
+        }
+        int size = backlog.size();
+        if (size < 2)
+            return null;
+        int handed = size / 2;
+        Deque<PendingEntry> split = new ArrayDeque<>(handed);
+        for (int i = 0; i < handed; i++)
+            split.addFirst(backlog.removeLast());
+        long share = -1;
+        if (remaining >= 0) {
+            share = remaining * handed / size;
+            remaining -= share;
+        }
+        return new CatalogSplitter(catalog, skipMountpoints, split, share);
+    }
+
+    /**
+     * @return estimated number of entries left, or Long.MAX_VALUE if the
+     * catalog has no statistics
+     */
+    public long estimateSize() {
+        return remaining < 0 ? Long.MAX_VALUE : remaining;
+    }
+}
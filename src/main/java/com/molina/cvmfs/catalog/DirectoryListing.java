@@ -0,0 +1,137 @@
+package com.molina.cvmfs.catalog;
+
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
+import com.molina.cvmfs.directoryentry.DirectoryEntry;
+import com.molina.cvmfs.repository.Repository;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Cursor over the entries of a directory, in name order, that keeps
+ *         at most one page of entries in memory. The row ids of the entries are
+ *         sorted by name once, when the first page is read, and pages are then
+ *         read by row id as the cursor advances, so no database connection is
+ *         held between pages and the catalog can still be used while the
+ *         cursor is open. A listing can be resumed later by opening a new
+ *         cursor after getLastName.
+ *         <p/>
+ *         If the catalog cannot be read, hasNext and next throw a
+ *         CatalogReadException rather than ending the listing early.
+ */
+public class DirectoryListing implements Iterator<DirectoryEntry>, Closeable {
+
+    private final Catalog catalog;
+    private final long parent1;
+    private final long parent2;
+    private final int pageSize;
+    private long[] order;
+    private int nextInOrder;
+    private List<DirectoryEntry> page;
+    private int position;
+    private String lastName;
+    private boolean exhausted;
+    private Repository owner;
+
+    /**
+     * @param catalog   catalog that contains the directory
+     * @param parent1   first part of the directory MD5 hash
+     * @param parent2   second part of the directory MD5 hash
+     * @param afterName name after which the listing starts, or null to start
+     *                  from the first entry
+     * @param pageSize  maximum number of entries read at once, 0 or less to
+     *                  read the whole directory at once
+     */
+    public DirectoryListing(Catalog catalog, long parent1, long parent2,
+                            String afterName, int pageSize) {
+        this.catalog = catalog;
+        this.parent1 = parent1;
+        this.parent2 = parent2;
+        this.pageSize = pageSize;
+        this.lastName = afterName == null ? "" : afterName;
+        this.page = Collections.emptyList();
+    }
+
+    public boolean hasNext() {
+        if (position < page.size())
+            return true;
+        while (!exhausted) {
+            readPage();
+            if (position < page.size())
+                return true;
+        }
+        close();
+        return false;
+    }
+
+    private void readPage() {
+        try {
+            if (order == null)
+                order = catalog.readListingOrder(parent1, parent2, lastName);
+            int end = pageSize > 0 ? (int) Math.min((long) nextInOrder + pageSize,
+                    order.length) : order.length;
+            page = catalog.readListingPage(order, nextInOrder, end);
+            nextInOrder = end;
+        } catch (SQLException e) {
+            throw new CatalogReadException("Cannot read the directory listing of catalog " +
+                    catalog.getHash(), e);
+        }
+        position = 0;
+        exhausted = nextInOrder >= order.length;
+    }
+
+    public DirectoryEntry next() {
+        if (!hasNext())
+            throw new NoSuchElementException("No more entries in the directory");
+        DirectoryEntry dirent = page.get(position++);
+        lastName = dirent.getName();
+        return dirent;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Cannot remove an element");
+    }
+
+    /**
+     * @return name of the last entry returned, from which the listing can be
+     * resumed, or the name the listing started after if none was returned
+     */
+    public String getLastName() {
+        return lastName;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Makes the cursor release its catalog, acquired from a repository, once
+     * it is closed or has returned every entry
+     *
+     * @param repository repository the catalog was acquired from
+     */
+    public void releaseOnClose(Repository repository) {
+        this.owner = repository;
+    }
+
+    /**
+     * Releases the current page, and the catalog if it was acquired. The
+     * cursor returns no more entries afterwards
+     */
+    public void close() {
+        order = null;
+        page = Collections.emptyList();
+        position = 0;
+        exhausted = true;
+        if (owner != null) {
+            owner.releaseCatalog(catalog);
+            owner = null;
+        }
+    }
+}
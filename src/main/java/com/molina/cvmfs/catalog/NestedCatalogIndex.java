@@ -0,0 +1,93 @@
+package com.molina.cvmfs.catalog;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Immutable index of the nested catalogs referenced by a catalog. The
+ *         references are sorted by root path, so that the one mounted at the
+ *         longest prefix of a path is found with a binary search per path
+ *         component, without allocating any memory.
+ */
+class NestedCatalogIndex {
+
+    private final CatalogReference[] references;
+    private final CatalogReference[] sortedReferences;
+
+    NestedCatalogIndex(CatalogReference[] references) {
+        this.references = references.clone();
+        this.sortedReferences = references.clone();
+        Arrays.sort(sortedReferences, new Comparator<CatalogReference>() {
+            public int compare(CatalogReference r1, CatalogReference r2) {
+                return r1.getRootPath().compareTo(r2.getRootPath());
+            }
+        });
+    }
+
+    int size() {
+        return references.length;
+    }
+
+    /**
+     * @return a copy of the references, in the order they were read
+     */
+    CatalogReference[] toArray() {
+        return references.clone();
+    }
+
+    /**
+     * Finds the nested catalog mounted at the longest prefix of a path. Only
+     * prefixes ending at a path component boundary are considered
+     *
+     * @param path canonical path to look for
+     * @return the reference of the best matching nested catalog, or null
+     */
+    CatalogReference findLongestPrefix(String path) {
+        if (sortedReferences.length == 0)
+            return null;
+        int end = path.length();
+        while (end > 0) {
+            int position = find(path, end);
+            if (position >= 0)
+                return sortedReferences[position];
+            end = path.lastIndexOf('/', end - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Binary search of the root path equal to the first length characters
+     * of path
+     */
+    private int find(String path, int length) {
+        int low = 0;
+        int high = sortedReferences.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(sortedReferences[middle].getRootPath(), path, length);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares a string with the first length characters of another one, in
+     * the same order as String.compareTo
+     */
+    private static int compare(String rootPath, String path, int length) {
+        int common = Math.min(rootPath.length(), length);
+        for (int i = 0; i < common; i++) {
+            int difference = rootPath.charAt(i) - path.charAt(i);
+            if (difference != 0)
+                return difference;
+        }
+        return rootPath.length() - length;
+    }
+}
@@ -0,0 +1,17 @@
+package com.molina.cvmfs.catalog.exception;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Thrown where a catalog cannot be read and a checked exception cannot
+ *         be, such as from an iterator, so that the failure is not mistaken
+ *         for the end of the data
+ */
+public class CatalogReadException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CatalogReadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,7 +1,5 @@
 package com.molina.cvmfs.common;
 
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -19,11 +17,15 @@ public class Common {
     public static final String LAST_REPLICATION_NAME = ".cvmfs_last_snapshot";
     public static final String REPLICATING_NAME = ".cvmfs_is_snapshotting";
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static String binaryBufferToHexString(byte[] binaryBuffer) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : binaryBuffer)
-            sb.append(String.format("%02x", b));
-        return sb.toString();
+        char[] hex = new char[binaryBuffer.length * 2];
+        for (int i = 0; i < binaryBuffer.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(binaryBuffer[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[binaryBuffer[i] & 0x0F];
+        }
+        return new String(hex);
     }
 
     public static String pathToMd5(String path) {
@@ -37,15 +39,79 @@ public class Common {
         return "";
     }
 
+    /**
+     * Removes empty and "." components from a path, resolves ".." components
+     * and drops the trailing separator. Paths that are already canonical are
+     * returned as they are
+     *
+     * @param path path to canonicalize
+     * @return the canonical path, or an empty string if path is null or empty
+     */
     public static String canonicalizePath(String path) {
         if (path == null || path.isEmpty())
             return "";
-        try {
-            return new URI(path).normalize().getPath();
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
-            return "";
+        if (isCanonicalPath(path))
+            return path;
+        boolean absolute = path.charAt(0) == '/';
+        StringBuilder canonical = new StringBuilder(path.length());
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            int componentLength = end - start;
+            if (componentLength == 2 && path.charAt(start) == '.' &&
+                    path.charAt(start + 1) == '.') {
+                if (canonical.length() > 0 && !endsWithParent(canonical))
+                    canonical.setLength(Math.max(canonical.lastIndexOf("/"), 0));
+                else if (!absolute)
+                    appendComponent(canonical, path, start, end, false);
+            } else if (componentLength > 1 || (componentLength == 1 &&
+                    path.charAt(start) != '.')) {
+                appendComponent(canonical, path, start, end, absolute);
+            }
+            start = end + 1;
+        }
+        if (absolute && canonical.length() == 0)
+            return "/";
+        return canonical.toString();
+    }
+
+    private static boolean isCanonicalPath(String path) {
+        int length = path.length();
+        if (length == 1)
+            return path.charAt(0) != '.';
+        if (path.charAt(length - 1) == '/')
+            return false;
+        int start = path.charAt(0) == '/' ? 1 : 0;
+        while (start <= length) {
+            int end = path.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            int componentLength = end - start;
+            if (componentLength == 0)
+                return false;
+            if (path.charAt(start) == '.' && (componentLength == 1 ||
+                    (componentLength == 2 && path.charAt(start + 1) == '.')))
+                return false;
+            start = end + 1;
         }
+        return true;
+    }
+
+    private static boolean endsWithParent(StringBuilder path) {
+        int length = path.length();
+        return length >= 2 && path.charAt(length - 1) == '.' &&
+                path.charAt(length - 2) == '.' &&
+                (length == 2 || path.charAt(length - 3) == '/');
+    }
+
+    private static void appendComponent(StringBuilder path, String source,
+                                        int start, int end, boolean absolute) {
+        if (absolute || path.length() > 0)
+            path.append('/');
+        path.append(source, start, end);
     }
 
     public static PathHash splitMd5(byte[] md5Digest) {
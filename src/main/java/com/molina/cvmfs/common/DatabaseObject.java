@@ -7,21 +7,101 @@ import org.sqlite.SQLiteOpenMode;
 
 import java.io.File;
 import java.sql.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @author Jose Molina Colmenero
+ *         <p/>
+ *         Read-only SQLite database. Queries that may run concurrently go
+ *         through sessions taken from a pool of connections, each one with its
+ *         own prepared statements. By default the pool has a single connection,
+ *         so that concurrent callers simply wait for each other. A bigger pool
+ *         lets queries on the same database run in parallel.
  */
 public class DatabaseObject {
 
+    public static final int DEFAULT_POOL_SIZE = 1;
+
     protected File databaseFile;
-    private Connection connection;
+    private volatile Connection connection;
     private boolean onAndroid;
+    private int poolSize;
+    private DatabaseProfile profile;
+    private final Object poolLock = new Object();
+    private List<Session> sessions;
+    private BlockingQueue<Session> idleSessions;
+
+    /**
+     * Left in the pool of a closed database, so that callers waiting for a
+     * session give up instead of waiting forever
+     */
+    private static final Session CLOSED = new Session(null);
+
+    /**
+     * Connection of the pool together with the statements prepared on it.
+     * A session is used by a single thread between acquireSession and
+     * releaseSession
+     */
+    public static class Session {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+
+        Session(Connection connection) {
+            this.connection = connection;
+            this.statements = new HashMap<>();
+        }
+
+        /**
+         * Returns the statement for the given query, preparing it on this
+         * session's connection the first time
+         *
+         * @param sql query to prepare
+         * @return the prepared statement, to be used only within the session
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        void close() throws SQLException {
+            for (PreparedStatement statement : statements.values())
+                statement.close();
+            statements.clear();
+            connection.close();
+        }
+    }
 
     public DatabaseObject(File databaseFile) throws IllegalStateException, SQLException {
+        this(databaseFile, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param databaseFile file of the database
+     * @param poolSize     number of connections that can query the database at
+     *                     the same time. It is always 1 on Android
+     */
+    public DatabaseObject(File databaseFile, int poolSize)
+            throws IllegalStateException, SQLException {
+        this(databaseFile, poolSize, new DatabaseProfile());
+    }
+
+    /**
+     * @param databaseFile file of the database
+     * @param poolSize     number of connections that can query the database at
+     *                     the same time. It is always 1 on Android
+     * @param profile      SQLite settings of the connections
+     */
+    public DatabaseObject(File databaseFile, int poolSize, DatabaseProfile profile)
+            throws IllegalStateException, SQLException {
         this.databaseFile = databaseFile;
+        this.poolSize = Math.max(1, poolSize);
+        this.profile = profile;
         if (this.databaseFile != null && this.databaseFile.exists()) {
             openDatabase();
         } else {
@@ -44,7 +124,7 @@ public class DatabaseObject {
     }
 
     /**
-     * Create and configure a database handle to the Catalog
+     * Create and configure the database handles of the pool
      */
     protected void openDatabase() throws SQLException {
         try {
@@ -53,14 +133,55 @@ public class DatabaseObject {
             connection = null;
             return;
         }
+        if (onAndroid)
+            poolSize = 1;
+        List<Session> opened = new ArrayList<>(poolSize);
+        Connection first;
+        try {
+            first = createConnection();
+            opened.add(new Session(first));
+            for (int i = 1; i < poolSize; i++)
+                opened.add(new Session(createConnection()));
+        } catch (SQLException e) {
+            for (Session session : opened)
+                closeQuietly(session);
+            throw e;
+        }
+        synchronized (poolLock) {
+            connection = first;
+            sessions = opened;
+            idleSessions = new ArrayBlockingQueue<>(poolSize);
+            idleSessions.addAll(opened);
+        }
+    }
+
+    private Connection createConnection() throws SQLException {
         String connectionURL = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+        Connection connection;
         if (!onAndroid) {
             SQLiteConfig config = new SQLiteConfig();
             config.setReadOnly(true);
-            config.setOpenMode(SQLiteOpenMode.NOMUTEX);
             config.setOpenMode(SQLiteOpenMode.PRIVATECACHE);
-            config.setLockingMode(SQLiteConfig.LockingMode.EXCLUSIVE);
+            if (profile.isImmutable()) {
+                config.setOpenMode(SQLiteOpenMode.OPEN_URI);
+                connectionURL = "jdbc:sqlite:file:" +
+                        encodeURIPath(databaseFile.getAbsolutePath()) + "?immutable=1";
+            }
+            if (profile.getCacheSize() > 0)
+                config.setCacheSize(-profile.getCacheSize());
+            if (profile.getTempStore() != DatabaseProfile.TempStore.DEFAULT)
+                config.setTempStore(SQLiteConfig.TempStore.valueOf(
+                        profile.getTempStore().name()));
+            if (isConcurrent()) {
+                // createStatement shares the first connection with its session
+                config.setOpenMode(SQLiteOpenMode.FULLMUTEX);
+                config.setLockingMode(SQLiteConfig.LockingMode.NORMAL);
+            } else {
+                config.setOpenMode(SQLiteOpenMode.NOMUTEX);
+                config.setLockingMode(SQLiteConfig.LockingMode.EXCLUSIVE);
+            }
             connection = config.createConnection(connectionURL);
+            applyProfilePragmas(connection);
         } else {
             Properties p = new Properties();
             p.put(SQLDroidDriver.DATABASE_FLAGS,
@@ -72,6 +193,120 @@ public class DatabaseObject {
         }
         connection.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
         connection.setAutoCommit(false);
+        return connection;
+    }
+
+    /**
+     * Sets the options that SQLiteConfig does not know about
+     */
+    private void applyProfilePragmas(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            if (profile.getMmapSize() > 0)
+                statement.execute("PRAGMA mmap_size = " + profile.getMmapSize() + ";");
+            if (profile.isQueryOnly())
+                statement.execute("PRAGMA query_only = 1;");
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String encodeURIPath(String path) {
+        return path.replace("%", "%25").replace("?", "%3f").replace("#", "%23");
+    }
+
+    public DatabaseProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return true if more than one connection can query the database at once
+     */
+    public boolean isConcurrent() {
+        return poolSize > 1;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Takes a session from the pool, waiting until one is available. Every
+     * session must be given back with releaseSession, after closing the
+     * result sets obtained from it
+     *
+     * @return a session for the exclusive use of the caller
+     * @throws SQLException if the database is closed
+     */
+    protected Session acquireSession() throws SQLException {
+        BlockingQueue<Session> pool;
+        synchronized (poolLock) {
+            pool = idleSessions;
+        }
+        if (pool == null)
+            throw new SQLException("Database " + databaseFile + " is closed");
+        Session session;
+        try {
+            session = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        if (session == CLOSED) {
+            // leave it for the other callers waiting on the same pool
+            pool.offer(CLOSED);
+            throw new SQLException("Database " + databaseFile + " is closed");
+        }
+        return session;
+    }
+
+    /**
+     * Gives a session back to the pool. If the database was closed while
+     * the session was in use, the session is closed instead
+     */
+    protected void releaseSession(Session session) {
+        synchronized (poolLock) {
+            if (sessions != null && sessions.contains(session)) {
+                idleSessions.offer(session);
+                return;
+            }
+        }
+        closeQuietly(session);
+    }
+
+    /**
+     * Closes the idle sessions right away. Sessions in use by other threads
+     * are closed by releaseSession once their queries are done
+     */
+    private void closeSessions() throws SQLException {
+        List<Session> idle = new ArrayList<>();
+        synchronized (poolLock) {
+            connection = null;
+            if (sessions == null)
+                return;
+            idleSessions.drainTo(idle);
+            idleSessions.offer(CLOSED);
+            sessions = null;
+            idleSessions = null;
+        }
+        SQLException failure = null;
+        for (Session session : idle) {
+            try {
+                session.close();
+            } catch (SQLException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private static void closeQuietly(Session session) {
+        try {
+            session.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
     }
 
     protected PreparedStatement createPreparedStatement(String sql) throws SQLException {
@@ -107,8 +342,7 @@ public class DatabaseObject {
 
     public boolean close() {
         try {
-            connection.close();
-            connection = null;
+            closeSessions();
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
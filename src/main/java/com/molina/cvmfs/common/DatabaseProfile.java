@@ -0,0 +1,103 @@
+package com.molina.cvmfs.common;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         SQLite settings used to open the databases of a repository. The
+ *         defaults suit catalogs and histories, which are read-only files that
+ *         never change once they are in the cache: they are memory-mapped,
+ *         opened as immutable, and get a page cache bigger than SQLite's.
+ *         The settings only apply on the standard JVM, Android keeps its own.
+ */
+public class DatabaseProfile {
+
+    public static final long DEFAULT_MMAP_SIZE = 256L * 1024 * 1024;
+    public static final int DEFAULT_CACHE_SIZE = 16 * 1024;
+
+    /**
+     * Where SQLite keeps its temporary tables and indices
+     */
+    public enum TempStore {
+        DEFAULT, FILE, MEMORY
+    }
+
+    protected long mmapSize;
+    protected int cacheSize;
+    protected TempStore tempStore;
+    protected boolean immutable;
+    protected boolean queryOnly;
+
+    /**
+     * Creates a profile with the read-only defaults
+     */
+    public DatabaseProfile() {
+        this(DEFAULT_MMAP_SIZE, DEFAULT_CACHE_SIZE, TempStore.MEMORY, true, true);
+    }
+
+    /**
+     * @param mmapSize  maximum number of bytes of the database mapped in
+     *                  memory, 0 to read it with regular system calls
+     * @param cacheSize size of the page cache of each connection in KiB,
+     *                  0 for SQLite's default
+     * @param tempStore where to keep temporary tables and indices
+     * @param immutable true to open the database as a file that cannot
+     *                  change, which skips locking and change detection
+     * @param queryOnly true to refuse any statement that writes
+     */
+    public DatabaseProfile(long mmapSize, int cacheSize, TempStore tempStore,
+                           boolean immutable, boolean queryOnly) {
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.tempStore = tempStore;
+        this.immutable = immutable;
+        this.queryOnly = queryOnly;
+    }
+
+    /**
+     * @return a profile that leaves every setting to SQLite, as databases
+     * were opened before profiles existed
+     */
+    public static DatabaseProfile sqliteDefaults() {
+        return new DatabaseProfile(0, 0, TempStore.DEFAULT, false, false);
+    }
+
+    public long getMmapSize() {
+        return mmapSize;
+    }
+
+    public void setMmapSize(long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public TempStore getTempStore() {
+        return tempStore;
+    }
+
+    public void setTempStore(TempStore tempStore) {
+        this.tempStore = tempStore;
+    }
+
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    public void setImmutable(boolean immutable) {
+        this.immutable = immutable;
+    }
+
+    public boolean isQueryOnly() {
+        return queryOnly;
+    }
+
+    public void setQueryOnly(boolean queryOnly) {
+        this.queryOnly = queryOnly;
+    }
+}
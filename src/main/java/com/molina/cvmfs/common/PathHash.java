@@ -2,6 +2,9 @@ package com.molina.cvmfs.common;
 
 /**
  * @author Jose Molina Colmenero
+ *         <p/>
+ *         MD5 hash of a path split in two longs, as stored in the catalogs.
+ *         Can be used as a map key.
  */
 public class PathHash {
 
@@ -20,4 +23,20 @@ public class PathHash {
     public long getHash2() {
         return hash2;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PathHash))
+            return false;
+        PathHash other = (PathHash) o;
+        return hash1 == other.hash1 && hash2 == other.hash2;
+    }
+
+    @Override
+    public int hashCode() {
+        // the halves of an MD5 hash are already well distributed
+        return (int) (hash1 ^ (hash1 >>> 32) ^ hash2);
+    }
 }
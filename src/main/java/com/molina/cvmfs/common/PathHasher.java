@@ -0,0 +1,125 @@
+package com.molina.cvmfs.common;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Computes the MD5 hash of paths, as stored in the catalogs, without
+ *         allocating memory. Every thread has its own hasher, with a digest and
+ *         buffers that are reused from one path to the next, so a hasher must
+ *         not be shared with other threads. Paths are encoded in UTF-8.
+ */
+public final class PathHasher {
+
+    private static final int MD5_LENGTH = 16;
+
+    private static final ThreadLocal<PathHasher> HASHERS = new ThreadLocal<PathHasher>() {
+        @Override
+        protected PathHasher initialValue() {
+            return new PathHasher();
+        }
+    };
+
+    private final MessageDigest md5;
+    private final byte[] digest = new byte[MD5_LENGTH];
+    private byte[] buffer = new byte[256];
+    private long hash1;
+    private long hash2;
+
+    private PathHasher() {
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the hasher of the current thread
+     */
+    public static PathHasher get() {
+        return HASHERS.get();
+    }
+
+    /**
+     * Hashes a path, whose halves are then available through getHash1 and
+     * getHash2 until the next call
+     *
+     * @param path canonical path
+     * @return this hasher
+     */
+    public PathHasher hash(String path) {
+        int length = encode(path);
+        md5.update(buffer, 0, length);
+        try {
+            md5.digest(digest, 0, MD5_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        long lo = 0;
+        long hi = 0;
+        for (int i = 0; i < 8; i++) {
+            lo |= ((long) (digest[i] & 0xFF)) << (i * 8);
+            hi |= ((long) (digest[i + 8] & 0xFF)) << (i * 8);
+        }
+        hash1 = lo;
+        hash2 = hi;
+        return this;
+    }
+
+    public long getHash1() {
+        return hash1;
+    }
+
+    public long getHash2() {
+        return hash2;
+    }
+
+    /**
+     * @return the last hash as a PathHash, which can be kept
+     */
+    public PathHash toPathHash() {
+        return new PathHash(hash1, hash2);
+    }
+
+    /**
+     * Encodes a path in UTF-8 into the buffer, growing it if needed
+     *
+     * @return number of bytes written
+     */
+    private int encode(String path) {
+        int length = path.length();
+        if (buffer.length < length * 3)
+            buffer = new byte[length * 3];
+        byte[] out = buffer;
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            char c = path.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                    Character.isLowSurrogate(path.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, path.charAt(++i));
+                out[position++] = (byte) (0xF0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, replaced like String.getBytes does
+                out[position++] = (byte) '?';
+            } else {
+                out[position++] = (byte) (0xE0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+}
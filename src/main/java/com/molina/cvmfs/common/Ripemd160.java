@@ -0,0 +1,187 @@
+package com.molina.cvmfs.common;
+
+import java.security.MessageDigest;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Plain Java implementation of RIPEMD-160, used to verify the objects
+ *         hashed with it when the installed security providers lack the
+ *         algorithm (the default ones of the JDK do not include it)
+ */
+public class Ripemd160 extends MessageDigest implements Cloneable {
+
+    public static final String ALGORITHM = "RIPEMD160";
+    private static final int DIGEST_LENGTH = 20;
+    private static final int BLOCK_LENGTH = 64;
+
+    private static final int[] R_LEFT = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+            7, 4, 13, 1, 10, 6, 15, 3, 12, 0, 9, 5, 2, 14, 11, 8,
+            3, 10, 14, 4, 9, 15, 8, 1, 2, 7, 0, 6, 13, 11, 5, 12,
+            1, 9, 11, 10, 0, 8, 12, 4, 13, 3, 7, 15, 14, 5, 6, 2,
+            4, 0, 5, 9, 7, 12, 2, 10, 14, 1, 3, 8, 11, 6, 15, 13};
+    private static final int[] R_RIGHT = {
+            5, 14, 7, 0, 9, 2, 11, 4, 13, 6, 15, 8, 1, 10, 3, 12,
+            6, 11, 3, 7, 0, 13, 5, 10, 14, 15, 8, 12, 4, 9, 1, 2,
+            15, 5, 1, 3, 7, 14, 6, 9, 11, 8, 12, 2, 10, 0, 4, 13,
+            8, 6, 4, 1, 3, 11, 15, 0, 5, 12, 2, 13, 9, 7, 10, 14,
+            12, 15, 10, 4, 1, 5, 8, 7, 6, 2, 13, 14, 0, 3, 9, 11};
+    private static final int[] S_LEFT = {
+            11, 14, 15, 12, 5, 8, 7, 9, 11, 13, 14, 15, 6, 7, 9, 8,
+            7, 6, 8, 13, 11, 9, 7, 15, 7, 12, 15, 9, 11, 7, 13, 12,
+            11, 13, 6, 7, 14, 9, 13, 15, 14, 8, 13, 6, 5, 12, 7, 5,
+            11, 12, 14, 15, 14, 15, 9, 8, 9, 14, 5, 6, 8, 6, 5, 12,
+            9, 15, 5, 11, 6, 8, 13, 12, 5, 12, 13, 14, 11, 8, 5, 6};
+    private static final int[] S_RIGHT = {
+            8, 9, 9, 11, 13, 15, 15, 5, 7, 7, 8, 11, 14, 14, 12, 6,
+            9, 13, 15, 7, 12, 8, 9, 11, 7, 7, 12, 7, 6, 15, 13, 11,
+            9, 7, 15, 11, 8, 6, 6, 14, 12, 13, 5, 14, 13, 13, 7, 5,
+            15, 5, 8, 11, 14, 14, 6, 14, 6, 9, 12, 9, 12, 5, 15, 8,
+            8, 5, 12, 9, 12, 5, 14, 6, 8, 13, 6, 5, 15, 13, 11, 11};
+    private static final int[] K_LEFT = {
+            0x00000000, 0x5a827999, 0x6ed9eba1, 0x8f1bbcdc, 0xa953fd4e};
+    private static final int[] K_RIGHT = {
+            0x50a28be6, 0x5c4dd124, 0x6d703ef3, 0x7a6d76e9, 0x00000000};
+
+    private int[] state = new int[5];
+    private int[] words = new int[16];
+    private byte[] block = new byte[BLOCK_LENGTH];
+    private int blockLength;
+    private long messageLength;
+
+    public Ripemd160() {
+        super(ALGORITHM);
+        engineReset();
+    }
+
+    private static int f(int round, int x, int y, int z) {
+        switch (round) {
+            case 0:
+                return x ^ y ^ z;
+            case 1:
+                return (x & y) | (~x & z);
+            case 2:
+                return (x | ~y) ^ z;
+            case 3:
+                return (x & z) | (y & ~z);
+            default:
+                return x ^ (y | ~z);
+        }
+    }
+
+    private void processBlock(byte[] input, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int p = offset + i * 4;
+            words[i] = (input[p] & 0xff) | (input[p + 1] & 0xff) << 8 |
+                    (input[p + 2] & 0xff) << 16 | (input[p + 3] & 0xff) << 24;
+        }
+        int al = state[0], bl = state[1], cl = state[2], dl = state[3], el = state[4];
+        int ar = al, br = bl, cr = cl, dr = dl, er = el;
+        for (int j = 0; j < 80; j++) {
+            int round = j >> 4;
+            int t = Integer.rotateLeft(al + f(round, bl, cl, dl) + words[R_LEFT[j]] +
+                    K_LEFT[round], S_LEFT[j]) + el;
+            al = el;
+            el = dl;
+            dl = Integer.rotateLeft(cl, 10);
+            cl = bl;
+            bl = t;
+            t = Integer.rotateLeft(ar + f(4 - round, br, cr, dr) + words[R_RIGHT[j]] +
+                    K_RIGHT[round], S_RIGHT[j]) + er;
+            ar = er;
+            er = dr;
+            dr = Integer.rotateLeft(cr, 10);
+            cr = br;
+            br = t;
+        }
+        int t = state[1] + cl + dr;
+        state[1] = state[2] + dl + er;
+        state[2] = state[3] + el + ar;
+        state[3] = state[4] + al + br;
+        state[4] = state[0] + bl + cr;
+        state[0] = t;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        block[blockLength++] = input;
+        messageLength++;
+        if (blockLength == BLOCK_LENGTH) {
+            processBlock(block, 0);
+            blockLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        messageLength += len;
+        if (blockLength > 0) {
+            int fill = Math.min(len, BLOCK_LENGTH - blockLength);
+            System.arraycopy(input, offset, block, blockLength, fill);
+            blockLength += fill;
+            offset += fill;
+            len -= fill;
+            if (blockLength < BLOCK_LENGTH)
+                return;
+            processBlock(block, 0);
+            blockLength = 0;
+        }
+        while (len >= BLOCK_LENGTH) {
+            processBlock(input, offset);
+            offset += BLOCK_LENGTH;
+            len -= BLOCK_LENGTH;
+        }
+        System.arraycopy(input, offset, block, 0, len);
+        blockLength = len;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long bitLength = messageLength << 3;
+        block[blockLength++] = (byte) 0x80;
+        if (blockLength > BLOCK_LENGTH - 8) {
+            while (blockLength < BLOCK_LENGTH)
+                block[blockLength++] = 0;
+            processBlock(block, 0);
+            blockLength = 0;
+        }
+        while (blockLength < BLOCK_LENGTH - 8)
+            block[blockLength++] = 0;
+        for (int i = 0; i < 8; i++)
+            block[blockLength++] = (byte) (bitLength >>> (i * 8));
+        processBlock(block, 0);
+        byte[] result = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 4; j++)
+                result[i * 4 + j] = (byte) (state[i] >>> (j * 8));
+        }
+        engineReset();
+        return result;
+    }
+
+    @Override
+    protected void engineReset() {
+        state[0] = 0x67452301;
+        state[1] = 0xefcdab89;
+        state[2] = 0x98badcfe;
+        state[3] = 0x10325476;
+        state[4] = 0xc3d2e1f0;
+        blockLength = 0;
+        messageLength = 0;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        Ripemd160 copy = (Ripemd160) super.clone();
+        copy.state = state.clone();
+        copy.words = new int[16];
+        copy.block = block.clone();
+        return copy;
+    }
+}
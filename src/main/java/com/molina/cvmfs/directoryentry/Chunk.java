@@ -1,5 +1,6 @@
 package com.molina.cvmfs.directoryentry;
 
+import com.molina.cvmfs.common.Common;
 import com.molina.cvmfs.directoryentry.exception.ChunkFileDoesNotMatch;
 import org.sqldroid.SQLDroidBlob;
 
@@ -12,8 +13,13 @@ import java.sql.SQLException;
  */
 public class Chunk {
 
-    protected int offset;
-    protected int size;
+    /**
+     * Suffix of the chunk objects in the content addressable storage
+     */
+    public static final String CHUNK_SUFFIX = "P";
+
+    protected long offset;
+    protected long size;
     protected String contentHash;
     protected int contentHashType;
 
@@ -21,30 +27,58 @@ public class Chunk {
     public Chunk(Object[] chunkData, int contentHashType) throws ChunkFileDoesNotMatch {
         if (chunkData.length != 5)
             throw new ChunkFileDoesNotMatch();
-        this.offset = (Integer) chunkData[2];
-        this.size = (Integer) chunkData[3];
+        // SQLite hands out Integer or Long depending on the magnitude
+        this.offset = ((Number) chunkData[2]).longValue();
+        this.size = ((Number) chunkData[3]).longValue();
         this.contentHashType = contentHashType;
         if (chunkData[4] instanceof byte[]) {
-            this.contentHash = new String((byte[]) chunkData[4]);
+            this.contentHash = Common.binaryBufferToHexString((byte[]) chunkData[4]);
         } else if (chunkData[4] instanceof SQLDroidBlob){
             SQLDroidBlob blob = (SQLDroidBlob) chunkData[4];
             try {
-                this.contentHash = new String(blob.getBytes(0, (int) blob.length()));
+                this.contentHash = Common.binaryBufferToHexString(
+                        blob.getBytes(0, (int) blob.length()));
             } catch (SQLException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * @param offset          position of the chunk in the file
+     * @param size            size of the chunk in bytes
+     * @param contentHash     content hash of the chunk as a hex string
+     * @param contentHashType hash type of the file the chunk belongs to
+     */
+    public Chunk(long offset, long size, String contentHash, int contentHashType) {
+        this.offset = offset;
+        this.size = size;
+        this.contentHash = contentHash;
+        this.contentHashType = contentHashType;
+    }
+
     public static String catalogDatabaseFields() {
         return "md5path_1, md5path_2, offset, size, hash";
     }
 
     public String contentHashString() {
         String suffix = ContentHashTypes.toSuffix(contentHashType);
-        StringBuilder sb = new StringBuilder();
-        for (byte b : contentHash.getBytes())
-            sb.append(String.format("%02X ", b));
-        return sb.toString().toLowerCase() + suffix;
+        return contentHash + suffix;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public int getContentHashType() {
+        return contentHashType;
     }
 }
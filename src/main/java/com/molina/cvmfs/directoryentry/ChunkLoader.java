@@ -0,0 +1,24 @@
+package com.molina.cvmfs.directoryentry;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Source of the chunks of a chunked file, usually the catalog the
+ *         DirectoryEntry was read from. Chunks are only loaded when they are
+ *         first requested
+ */
+public interface ChunkLoader {
+
+    /**
+     * Reads the chunks of a chunked file
+     *
+     * @param dirent chunked file whose chunks are requested
+     * @return the chunks of the file ordered by offset
+     * @throws SQLException if the chunks cannot be read, for instance because
+     *                      the catalog has been closed
+     */
+    List<Chunk> loadChunks(DirectoryEntry dirent) throws SQLException;
+}
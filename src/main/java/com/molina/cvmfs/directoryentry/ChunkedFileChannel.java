@@ -0,0 +1,205 @@
+package com.molina.cvmfs.directoryentry;
+
+import com.molina.cvmfs.fetcher.Cache;
+import com.molina.cvmfs.repository.Repository;
+import com.molina.cvmfs.repository.exception.FileNotFoundInRepositoryException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Read-only random access to the content of a file in the repository.
+ *         The position is mapped onto the chunk list of the file by binary search
+ *         over the chunk offsets, and only the chunks overlapping the ranges that
+ *         are actually read get retrieved. When the file is read sequentially the
+ *         next chunk is requested in the background ahead of time, and pinned in
+ *         the cache until it is read or the channel is closed.
+ *         Files that are not chunked are handled as a single chunk.
+ */
+public class ChunkedFileChannel implements SeekableByteChannel {
+
+    private Repository repository;
+    private long size;
+    private long[] offsets;
+    private String[] objectNames;
+    private long position;
+    private boolean open;
+    private int currentIndex = -1;
+    private FileChannel currentChannel;
+    private long lastReadEnd = -1;
+    private int readAheadIndex = -1;
+    private Future<File> readAhead;
+
+    public ChunkedFileChannel(Repository repository, DirectoryEntry dirent) {
+        this.repository = repository;
+        this.size = dirent.getSize();
+        List<Chunk> chunks = dirent.getChunks();
+        if (chunks.isEmpty()) {
+            offsets = new long[]{0};
+            objectNames = new String[]{
+                    Repository.makeObjectName(dirent.contentHashString(), "")};
+        } else {
+            offsets = new long[chunks.size()];
+            objectNames = new String[chunks.size()];
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                offsets[i] = chunk.getOffset();
+                objectNames[i] = Repository.makeObjectName(chunk.contentHashString(),
+                        Chunk.CHUNK_SUFFIX);
+            }
+        }
+        this.open = true;
+    }
+
+    /**
+     * @return index of the chunk that contains the given position
+     */
+    protected int chunkIndexFor(long position) {
+        int index = Arrays.binarySearch(offsets, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        if (position >= size)
+            return -1;
+        if (!dst.hasRemaining())
+            return 0;
+        int index = chunkIndexFor(position);
+        FileChannel channel = channelFor(index);
+        int bytesRead = channel.read(dst, position - offsets[index]);
+        if (bytesRead <= 0)
+            throw new IOException("Chunk " + objectNames[index] + " is shorter than expected");
+        boolean sequential = position == lastReadEnd;
+        position += bytesRead;
+        lastReadEnd = position;
+        if (sequential && index + 1 < offsets.length)
+            requestReadAhead(index + 1);
+        return bytesRead;
+    }
+
+    /**
+     * Opens the cached object of the given chunk, retrieving it if needed.
+     * The object is pinned in the cache for as long as it is opened
+     */
+    private FileChannel channelFor(int index) throws IOException {
+        if (index == currentIndex)
+            return currentChannel;
+        closeCurrentChunk();
+        Cache cache = repository.getFetcher().getCache();
+        cache.pin(objectNames[index]);
+        try {
+            File chunkFile;
+            if (index == readAheadIndex) {
+                Future<File> pending = readAhead;
+                dropReadAhead();
+                chunkFile = pending.get();
+            } else {
+                chunkFile = repository.getFetcher().retrieveFile(objectNames[index]);
+            }
+            if (chunkFile == null)
+                throw new IOException("Chunk " + objectNames[index] + " is corrupted");
+            currentChannel = new RandomAccessFile(chunkFile, "r").getChannel();
+            currentIndex = index;
+            return currentChannel;
+        } catch (FileNotFoundInRepositoryException | ExecutionException e) {
+            cache.unpin(objectNames[index]);
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            cache.unpin(objectNames[index]);
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (IOException e) {
+            cache.unpin(objectNames[index]);
+            throw e;
+        }
+    }
+
+    private void requestReadAhead(int index) {
+        if (index == readAheadIndex || index == currentIndex)
+            return;
+        dropReadAhead();
+        // pinned so that the chunk is not evicted before it is read
+        repository.getFetcher().getCache().pin(objectNames[index]);
+        readAhead = repository.getFetcher().retrieveFileAsync(objectNames[index]);
+        readAheadIndex = index;
+    }
+
+    /**
+     * Forgets the chunk requested ahead, if any, and unpins it. The download
+     * itself is left to complete
+     */
+    private void dropReadAhead() {
+        if (readAheadIndex == -1)
+            return;
+        repository.getFetcher().getCache().unpin(objectNames[readAheadIndex]);
+        readAhead = null;
+        readAheadIndex = -1;
+    }
+
+    private void closeCurrentChunk() throws IOException {
+        if (currentChannel == null)
+            return;
+        try {
+            currentChannel.close();
+        } finally {
+            repository.getFetcher().getCache().unpin(objectNames[currentIndex]);
+            currentChannel = null;
+            currentIndex = -1;
+        }
+    }
+
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized long position() throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        return position;
+    }
+
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        if (newPosition < 0)
+            throw new IllegalArgumentException("Negative position");
+        position = newPosition;
+        return this;
+    }
+
+    public long size() throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        return size;
+    }
+
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public synchronized void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        dropReadAhead();
+        closeCurrentChunk();
+    }
+}
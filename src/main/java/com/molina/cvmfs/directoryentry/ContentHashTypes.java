@@ -1,5 +1,10 @@
 package com.molina.cvmfs.directoryentry;
 
+import com.molina.cvmfs.common.Ripemd160;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
  * @author Jose Molina Colmenero
  *         <p/>
@@ -24,4 +29,43 @@ public class ContentHashTypes {
             return "-rmd160";
         return "";
     }
+
+    /**
+     * Figures out the hash type from what follows the hash in the name of an
+     * object in CVMFS's CAS, the reverse of toSuffix
+     *
+     * @param suffix rest of the object name after the hexadecimal hash,
+     *               including the object type suffix if any
+     * @return the content hash type, or UNKNOWN
+     */
+    public static int fromSuffix(String suffix) {
+        if (suffix.startsWith("-rmd160"))
+            return ContentHashTypes.RIPEMD160;
+        if (suffix.startsWith("-"))
+            return ContentHashTypes.UNKNOWN;
+        return ContentHashTypes.SHA1;
+    }
+
+    /**
+     * Creates a digest that computes hashes of the given type. RIPEMD-160 is
+     * computed by Ripemd160 when no installed provider supports it
+     *
+     * @param contentHashType hash type to compute
+     * @return a new digest
+     * @throws NoSuchAlgorithmException if the hash type is not supported
+     */
+    public static MessageDigest createDigest(int contentHashType)
+            throws NoSuchAlgorithmException {
+        if (contentHashType == ContentHashTypes.SHA1)
+            return MessageDigest.getInstance("SHA1");
+        if (contentHashType == ContentHashTypes.RIPEMD160) {
+            try {
+                return MessageDigest.getInstance(Ripemd160.ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                return new Ripemd160();
+            }
+        }
+        throw new NoSuchAlgorithmException("Unsupported content hash type " +
+                contentHashType);
+    }
 }
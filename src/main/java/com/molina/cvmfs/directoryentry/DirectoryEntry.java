@@ -1,5 +1,6 @@
 package com.molina.cvmfs.directoryentry;
 
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
 import com.molina.cvmfs.common.Common;
 import com.molina.cvmfs.common.PathHash;
 import com.molina.cvmfs.directoryentry.exception.ChunkFileDoesNotMatch;
@@ -11,31 +12,37 @@ import java.io.File;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Jose Molina Colmenero
  *         <p/>
- *         Wrapper around a DirectoryEntry as it is saved in the Catalogs
+ *         Wrapper around a DirectoryEntry as it is saved in the Catalogs.
+ *         The chunks of chunked files are loaded on first access through a
+ *         {@link ChunkLoader}, while the rest of entries share an empty list.
  */
 public class DirectoryEntry {
 
+    private static final List<Chunk> NO_CHUNKS = Collections.emptyList();
+
     protected long md5path_1;
     protected long md5path_2;
     protected long parent_1;
     protected long parent_2;
     protected String contentHash;
     protected int flags;
-    protected int size;
+    protected long size;
     protected int mode;
     protected long mtime;
     protected String name;
     protected String symlink;
-    protected ArrayList<Chunk> chunks;
+    protected volatile List<Chunk> chunks;
+    protected volatile ChunkLoader chunkLoader;
     protected int contentHashType;
 
     public DirectoryEntry(ResultSet resultSet) throws SQLException {
         // see DirectoryEntry.catalogDatabaseFields()
-        chunks = new ArrayList<>();
         md5path_1 = resultSet.getLong("md5path_1");
         md5path_2 = resultSet.getLong("md5path_2");
         parent_1 = resultSet.getLong("parent_1");
@@ -45,12 +52,37 @@ public class DirectoryEntry {
             contentHash = Common.binaryBufferToHexString(hashBytes);
         }
         flags = resultSet.getInt("flags");
-        size = resultSet.getInt("size");
+        size = resultSet.getLong("size");
         mode = resultSet.getInt("mode");
         mtime = resultSet.getLong("mtime");
         name = resultSet.getString("name");
         symlink = resultSet.getString("symlink");
         readContentHashType();
+        // chunks of chunked files are loaded when requested
+        chunks = isChunkedFile() ? null : NO_CHUNKS;
+    }
+
+    /**
+     * Creates an entry from its fields, as read from a CatalogIndex. The
+     * chunks of chunked files are loaded through a ChunkLoader or given with
+     * setChunks
+     */
+    public DirectoryEntry(long md5path_1, long md5path_2, long parent_1, long parent_2,
+                          String contentHash, int flags, long size, int mode,
+                          long mtime, String name, String symlink) {
+        this.md5path_1 = md5path_1;
+        this.md5path_2 = md5path_2;
+        this.parent_1 = parent_1;
+        this.parent_2 = parent_2;
+        this.contentHash = contentHash;
+        this.flags = flags;
+        this.size = size;
+        this.mode = mode;
+        this.mtime = mtime;
+        this.name = name;
+        this.symlink = symlink;
+        readContentHashType();
+        chunks = isChunkedFile() ? null : NO_CHUNKS;
     }
 
     public static String catalogDatabaseFields() {
@@ -66,6 +98,22 @@ public class DirectoryEntry {
         return repository.retrieveObject(contentHashString());
     }
 
+    /**
+     * Opens the content of a regular file for random access. Chunked files
+     * only retrieve the chunks that cover the ranges being read
+     *
+     * @param repository repository the entry belongs to
+     * @return a read-only channel over the content of the file
+     * @throws CatalogReadException if the chunks of a chunked file cannot be
+     *                              loaded
+     */
+    public ChunkedFileChannel openChannel(Repository repository)
+            throws DirectoryEntryInvalidObject {
+        if (isSymplink() || isDirectory())
+            throw new DirectoryEntryInvalidObject();
+        return new ChunkedFileChannel(repository, this);
+    }
+
     public boolean isDirectory() {
         return (flags & Flags.DIRECTORY) > 0;
     }
@@ -82,6 +130,10 @@ public class DirectoryEntry {
         return (flags & Flags.FILE) > 0;
     }
 
+    public boolean isChunkedFile() {
+        return (flags & Flags.FILE_CHUNK) > 0;
+    }
+
     public boolean isSymplink() {
         return (flags & Flags.LINK) > 0;
     }
@@ -100,18 +152,50 @@ public class DirectoryEntry {
     }
 
     public boolean hasChunks() {
-        return !chunks.isEmpty();
+        return !getChunks().isEmpty();
     }
 
     public void addChunks(ResultSet resultSet)
             throws SQLException, ChunkFileDoesNotMatch {
-        chunks.clear();
+        chunks = readChunks(resultSet, contentHashType);
+    }
+
+    /**
+     * Reads the chunks of a file from the rows of a chunk query
+     *
+     * @param resultSet       rows with the fields of Chunk.catalogDatabaseFields()
+     * @param contentHashType hash type of the file the chunks belong to
+     * @return the chunks in the order of the rows
+     */
+    public static List<Chunk> readChunks(ResultSet resultSet, int contentHashType)
+            throws SQLException, ChunkFileDoesNotMatch {
+        List<Chunk> chunks = new ArrayList<>();
         while (resultSet.next()) {
             Object[] chunkData = new Object[5];
             for (int i = 0; i < chunkData.length; i++)
                 chunkData[i] = resultSet.getObject(i + 1);
             chunks.add(new Chunk(chunkData, contentHashType));
         }
+        return chunks;
+    }
+
+    /**
+     * Sets the loader used to read the chunks of this entry on first access
+     *
+     * @param chunkLoader source of the chunks, usually the owning catalog
+     */
+    public void setChunkLoader(ChunkLoader chunkLoader) {
+        this.chunkLoader = chunkLoader;
+    }
+
+    /**
+     * Sets the chunks of this entry, unless they were already loaded
+     *
+     * @param chunks chunks of the file ordered by offset
+     */
+    public synchronized void setChunks(List<Chunk> chunks) {
+        if (this.chunks == null)
+            this.chunks = chunks;
     }
 
     protected void readContentHashType() {
@@ -152,7 +236,7 @@ public class DirectoryEntry {
         return flags;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
@@ -172,8 +256,31 @@ public class DirectoryEntry {
         return symlink;
     }
 
-    public ArrayList<Chunk> getChunks() {
-        return chunks;
+    /**
+     * Returns the chunks of a chunked file, loading them from the catalog the
+     * first time. Loading fails if the catalog has been closed meanwhile, so
+     * the entry must be looked up again, from the catalog opened in its place
+     *
+     * @return the chunks of the file ordered by offset, or an empty list if
+     * the entry is not a chunked file
+     * @throws CatalogReadException if the chunks cannot be loaded, so that a
+     *                              chunked file is never taken for a bulk one
+     */
+    public List<Chunk> getChunks() {
+        List<Chunk> currentChunks = chunks;
+        if (currentChunks != null)
+            return currentChunks;
+        ChunkLoader loader = chunkLoader;
+        if (loader == null)
+            return NO_CHUNKS;
+        try {
+            // the loader may set the chunks of other entries, so no lock is
+            // held here; concurrent first calls may load the chunks twice
+            setChunks(loader.loadChunks(this));
+            return chunks;
+        } catch (SQLException e) {
+            throw new CatalogReadException("Cannot load the chunks of " + name, e);
+        }
     }
 
     public int getContentHashType() {
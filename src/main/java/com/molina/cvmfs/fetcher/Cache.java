@@ -2,19 +2,51 @@ package com.molina.cvmfs.fetcher;
 
 
 import com.molina.cvmfs.repository.exception.CacheDirectoryNotFound;
-import org.apache.commons.io.FileUtils;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.io.IOException;
+import java.io.*;
+import java.util.*;
 
 /**
  * @author Jose Molina Colmenero
+ *         <p/>
+ *         Local storage for the objects of a repository. The objects kept under
+ *         the data directory can be bounded by a quota in bytes: whenever storing a
+ *         new object pushes the usage over the quota, the least recently used
+ *         objects are removed until it fits again. Objects that are pinned, such
+ *         as the files of opened catalogs, are never removed.
+ *         The cache also remembers which objects had their content hash verified
+ *         when they were stored, in a log that survives restarts.
  */
 public class Cache {
+    public static final long UNLIMITED = 0;
+    /**
+     * Temporary files untouched for this long are leftovers of interrupted
+     * downloads, the ones being written by other instances sharing the cache
+     * are modified more often
+     */
+    public static final long STALE_TEMPORARY_AGE = 60 * 60 * 1000L;
+    private static final String DATA_DIRECTORY = "data";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String VERIFIED_LOG = "verified";
+
     protected File cacheDirectory;
+    protected long quota;
+    protected long usage;
+    protected LinkedHashMap<String, Long> entries;
+    protected Map<String, Integer> pinned;
+    protected Set<String> verified;
 
     public Cache(String cacheDirectoryPath) throws CacheDirectoryNotFound, IOException {
+        this(cacheDirectoryPath, UNLIMITED);
+    }
+
+    /**
+     * @param cacheDirectoryPath directory where the cache is stored
+     * @param quota              maximum number of bytes of the stored objects,
+     *                           or UNLIMITED
+     */
+    public Cache(String cacheDirectoryPath, long quota)
+            throws CacheDirectoryNotFound, IOException {
         cacheDirectory = new File(cacheDirectoryPath).getAbsoluteFile();
         if (!cacheDirectory.exists()) {
             throw new CacheDirectoryNotFound(cacheDirectory.toString());
@@ -24,6 +56,11 @@ public class Cache {
         } else {
             throw new CacheDirectoryNotFound(cacheDirectory.toString());
         }
+        this.quota = quota;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.pinned = new HashMap<>();
+        this.verified = new HashSet<>();
+        loadEntries();
     }
 
     protected void cleanup_metadata() throws IOException {
@@ -45,18 +82,141 @@ public class Cache {
     }
 
     protected void createCacheStructure() throws IOException {
-        createDirectory("data");
+        createDirectory(DATA_DIRECTORY);
         for (int i = 0x00; i <= 0xff; i++) {
             String newFolder = Integer.toHexString(i);
             if (newFolder.length() == 1)
                 newFolder = "0" + newFolder;
-            File newFile = new File(cacheDirectory.getAbsolutePath() + File.separator + "data" +
+            File newFile = new File(cacheDirectory.getAbsolutePath() + File.separator + DATA_DIRECTORY +
                     File.separator + newFolder);
             if (!newFile.exists() && !newFile.mkdir())
                 throw new IOException("Cannot open " + newFile.getAbsolutePath());
         }
     }
 
+    /**
+     * Registers the objects already present in the cache, from the least to
+     * the most recently modified, and removes the temporary files that have
+     * not been modified for STALE_TEMPORARY_AGE
+     */
+    protected void loadEntries() {
+        long staleBefore = System.currentTimeMillis() - STALE_TEMPORARY_AGE;
+        File dataDirectory = new File(cacheDirectory, DATA_DIRECTORY);
+        List<File> objects = new ArrayList<>();
+        File[] buckets = dataDirectory.listFiles();
+        if (buckets == null)
+            return;
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                    // it may still be written by another instance
+                    if (file.lastModified() < staleBefore)
+                        file.delete();
+                } else if (file.isFile())
+                    objects.add(file);
+            }
+        }
+        Collections.sort(objects, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        Set<String> loggedObjects = readVerifiedLog();
+        synchronized (this) {
+            for (File file : objects) {
+                String fileName = DATA_DIRECTORY + File.separator +
+                        file.getParentFile().getName() + File.separator + file.getName();
+                entries.put(fileName, file.length());
+                usage += file.length();
+                if (loggedObjects.contains(fileName))
+                    verified.add(fileName);
+            }
+            shrink(quota, null);
+            writeVerifiedLog();
+        }
+    }
+
+    private Set<String> readVerifiedLog() {
+        Set<String> loggedObjects = new HashSet<>();
+        File log = new File(cacheDirectory, VERIFIED_LOG);
+        if (!log.isFile())
+            return loggedObjects;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(log));
+            String line;
+            while ((line = reader.readLine()) != null)
+                loggedObjects.add(line);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return loggedObjects;
+    }
+
+    /**
+     * Rewrites the log of verified objects so that it only lists the ones
+     * still present in the cache
+     */
+    private synchronized void writeVerifiedLog() {
+        File log = new File(cacheDirectory, VERIFIED_LOG);
+        Writer writer = null;
+        try {
+            File temporaryLog = File.createTempFile(VERIFIED_LOG + ".", TEMPORARY_SUFFIX,
+                    cacheDirectory);
+            writer = new BufferedWriter(new FileWriter(temporaryLog));
+            for (String fileName : verified)
+                writer.write(fileName + "\n");
+            writer.close();
+            writer = null;
+            if (!temporaryLog.renameTo(log))
+                temporaryLog.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private synchronized void appendVerifiedLog(String fileName) {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(cacheDirectory, VERIFIED_LOG), true);
+            writer.write(fileName + "\n");
+        } catch (IOException e) {
+            // the object will just be considered unverified after a restart
+            e.printStackTrace();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static boolean isObject(String fileName) {
+        return fileName.startsWith(DATA_DIRECTORY + File.separator);
+    }
+
     public String getCachePath() {
         return cacheDirectory.getAbsolutePath();
     }
@@ -66,24 +226,178 @@ public class Cache {
         return new File(fullPath);
     }
 
+    /**
+     * Creates a uniquely named file next to where fileName will be stored,
+     * to be written and then renamed to its final name
+     *
+     * @param fileName name of the file that will be stored
+     * @return a new empty temporary file
+     */
+    public File addTemporary(String fileName) throws IOException {
+        File file = add(fileName);
+        return File.createTempFile(file.getName() + TEMPORARY_SUFFIX + ".", TEMPORARY_SUFFIX,
+                file.getParentFile());
+    }
+
+    /**
+     * Moves a completely written temporary file to its final place in the
+     * cache and accounts for its size, evicting other objects if needed
+     *
+     * @param temporaryFile file obtained with addTemporary and already written
+     * @param fileName      name of the file in the repository
+     * @return true if the file was stored
+     */
+    public boolean commit(File temporaryFile, String fileName) {
+        return commit(temporaryFile, fileName, false);
+    }
+
+    /**
+     * Moves a completely written temporary file to its final place in the
+     * cache, recording whether its content hash has been verified
+     *
+     * @param temporaryFile file obtained with addTemporary and already written
+     * @param fileName      name of the file in the repository
+     * @param isVerified    true if the content hash of the file was checked
+     * @return true if the file was stored
+     */
+    public boolean commit(File temporaryFile, String fileName, boolean isVerified) {
+        File cachedFile = add(fileName);
+        long size = temporaryFile.length();
+        if (!temporaryFile.renameTo(cachedFile)) {
+            temporaryFile.delete();
+            return false;
+        }
+        if (isObject(fileName)) {
+            synchronized (this) {
+                Long previousSize = entries.put(fileName, size);
+                usage += size - (previousSize == null ? 0 : previousSize);
+                if (isVerified) {
+                    if (verified.add(fileName))
+                        appendVerifiedLog(fileName);
+                } else {
+                    verified.remove(fileName);
+                }
+                shrink(quota, fileName);
+            }
+        }
+        return true;
+    }
+
     public File get(String fileName) {
         String fullPath = cacheDirectory.getAbsolutePath() + File.separator + fileName;
         File file = new File(fullPath);
         if (file.exists() && file.isFile()) {
+            if (isObject(fileName))
+                touch(fileName, file);
             return file;
         }
         return null;
     }
 
-    public void evict() {
-        String dataPath = cacheDirectory.getAbsolutePath() + File.separator + "data";
-        File dataFile = new File(dataPath);
-        if (dataFile.exists() && dataFile.isDirectory()) {
-            try {
-                FileUtils.deleteDirectory(dataFile);
-                createCacheStructure();
-            } catch (IOException e) {
-                e.printStackTrace();
+    private synchronized void touch(String fileName, File file) {
+        if (entries.get(fileName) == null) {
+            // stored by somebody else sharing the cache directory
+            long size = file.length();
+            entries.put(fileName, size);
+            usage += size;
+            shrink(quota, fileName);
+        }
+    }
+
+    /**
+     * Protects an object from eviction until it is unpinned. Pins are counted,
+     * so every call must be paired with a call to unpin
+     *
+     * @param fileName name of the file in the repository
+     */
+    public synchronized void pin(String fileName) {
+        Integer count = pinned.get(fileName);
+        pinned.put(fileName, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void unpin(String fileName) {
+        Integer count = pinned.get(fileName);
+        if (count == null)
+            return;
+        if (count <= 1)
+            pinned.remove(fileName);
+        else
+            pinned.put(fileName, count - 1);
+    }
+
+    public synchronized boolean isPinned(String fileName) {
+        return pinned.containsKey(fileName);
+    }
+
+    /**
+     * @param fileName name of the file in the repository
+     * @return true if the content hash of the object was verified when it
+     * was stored in the cache
+     */
+    public synchronized boolean isVerified(String fileName) {
+        return verified.contains(fileName);
+    }
+
+    /**
+     * Removes least recently used objects until the usage is not greater than
+     * the limit. Pinned objects are skipped
+     *
+     * @param limit maximum usage in bytes, UNLIMITED does nothing
+     * @param keep  name of an object that must not be removed, or null
+     */
+    protected synchronized void shrink(long limit, String keep) {
+        if (limit == UNLIMITED)
+            return;
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (usage > limit && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String fileName = entry.getKey();
+            if (pinned.containsKey(fileName) || fileName.equals(keep))
+                continue;
+            File file = add(fileName);
+            if (file.delete() || !file.exists()) {
+                usage -= entry.getValue();
+                verified.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Changes the quota, evicting objects right away if the usage exceeds it
+     *
+     * @param quota maximum number of bytes of the stored objects, or UNLIMITED
+     */
+    public synchronized void setQuota(long quota) {
+        this.quota = quota;
+        shrink(quota, null);
+    }
+
+    /**
+     * @return number of bytes used by the objects stored in the cache
+     */
+    public synchronized long getUsage() {
+        return usage;
+    }
+
+    /**
+     * Removes all the objects of the cache but the pinned ones
+     */
+    public synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (pinned.containsKey(entry.getKey()))
+                continue;
+            File file = add(entry.getKey());
+            if (file.delete() || !file.exists()) {
+                usage -= entry.getValue();
+                verified.remove(entry.getKey());
+                iterator.remove();
             }
         }
     }
@@ -0,0 +1,130 @@
+package com.molina.cvmfs.fetcher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.concurrent.*;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Computes the content hash of an object while it is being inflated.
+ *         Small objects are hashed in the calling thread. Once an object grows
+ *         past PARALLEL_THRESHOLD the rest of its bytes are handed to a worker
+ *         through a bounded queue, so that hashing runs on another core next to
+ *         inflation. When the worker falls behind the queue fills up and the
+ *         reader waits, so the memory used stays bounded.
+ */
+class ContentVerifier {
+
+    public static final long PARALLEL_THRESHOLD = 256 * 1024;
+    private static final int QUEUE_CAPACITY = 8;
+    private static final int BLOCK_SIZE = 8192;
+    private static final long POLL_INTERVAL = 100;
+    private static final Block END = new Block(new byte[0], 0);
+
+    private final MessageDigest digest;
+    private final ExecutorService executor;
+    private long inlineBytes;
+    private BlockingQueue<Block> blocks;
+    private BlockingQueue<byte[]> freeBuffers;
+    private Future<byte[]> worker;
+
+    private static class Block {
+        final byte[] buffer;
+        final int length;
+
+        Block(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param digest   digest of the hash type of the object
+     * @param executor where to run the worker, or null to always hash in the
+     *                 calling thread
+     */
+    public ContentVerifier(MessageDigest digest, ExecutorService executor) {
+        this.digest = digest;
+        this.executor = executor;
+    }
+
+    public void update(byte[] b, int off, int len) throws IOException {
+        if (worker == null) {
+            if (inlineBytes < PARALLEL_THRESHOLD || executor == null || !startWorker()) {
+                digest.update(b, off, len);
+                inlineBytes += len;
+                return;
+            }
+        }
+        byte[] buffer = freeBuffers.poll();
+        if (buffer == null || buffer.length < len)
+            buffer = new byte[Math.max(len, BLOCK_SIZE)];
+        System.arraycopy(b, off, buffer, 0, len);
+        handOff(new Block(buffer, len));
+    }
+
+    private boolean startWorker() {
+        blocks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        freeBuffers = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 1);
+        try {
+            worker = executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws InterruptedException {
+                    while (true) {
+                        Block block = blocks.take();
+                        if (block == END)
+                            return digest.digest();
+                        digest.update(block.buffer, 0, block.length);
+                        freeBuffers.offer(block.buffer);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the executor has been shut down, keep hashing in the calling thread
+            blocks = null;
+            freeBuffers = null;
+            return false;
+        }
+        return true;
+    }
+
+    private void handOff(Block block) throws IOException {
+        try {
+            while (!blocks.offer(block, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (worker.isDone())
+                    throw new IOException("Content hash worker stopped unexpectedly");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Completes the hash computation, waiting for the worker if there is one
+     *
+     * @return the content hash of all the bytes given to update
+     */
+    public byte[] digest() throws IOException {
+        if (worker == null)
+            return digest.digest();
+        handOff(END);
+        try {
+            return worker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the worker, if any, without computing the hash
+     */
+    public void cancel() {
+        if (worker != null)
+            worker.cancel(true);
+    }
+}
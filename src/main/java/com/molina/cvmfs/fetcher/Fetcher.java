@@ -1,128 +1,374 @@
 package com.molina.cvmfs.fetcher;
 
-import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.directoryentry.ContentHashTypes;
+import com.molina.cvmfs.fetcher.exception.ContentHashMismatch;
 import com.molina.cvmfs.repository.exception.CacheDirectoryNotFound;
 import com.molina.cvmfs.repository.exception.FileNotFoundInRepositoryException;
 
 import java.io.*;
 import java.net.URL;
-import java.net.URLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Jose Molina Colmenero
+ *         <p/>
+ *         Downloads objects from the repository source into the local cache.
+ *         Downloads are run by a bounded pool of threads, and concurrent
+ *         requests for the same object share a single in-flight download.
+ *         The source is accessed through a {@link SourceBackend}: a local
+ *         directory is read directly from disk, while remote sources can be
+ *         given as a list of mirrors of the same repository.
+ *         Objects are verified against the content hash in their names, using
+ *         the hash algorithm given by the name suffix, and large objects are
+ *         hashed by a separate thread while they are being inflated.
  */
 public class Fetcher {
+    public static final int DEFAULT_DOWNLOAD_THREADS = 8;
     private static final int FETCHER_BUFFER_SIZE = 8192;
 
     protected Cache cache;
-    protected URL source;
+    protected SourceBackend backend;
+    protected ExecutorService downloadExecutor;
+    protected ExecutorService digestExecutor;
+    protected int downloadThreads;
+    protected volatile Prefetcher prefetcher;
+    protected ConcurrentMap<String, Future<File>> inFlightDownloads;
+    protected Set<String> rawFiles;
+    protected volatile int rawFileTTL;
+    protected volatile boolean verifyCachedObjects;
+    private final AtomicLong coalescedDownloads = new AtomicLong();
+    private final AtomicInteger queuedDownloads = new AtomicInteger();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
 
     public Fetcher(String source, String cacheDirectory) throws CacheDirectoryNotFound, IOException {
+        this(source, cacheDirectory, DEFAULT_DOWNLOAD_THREADS);
+    }
+
+    public Fetcher(String source, String cacheDirectory, int downloadThreads)
+            throws CacheDirectoryNotFound, IOException {
+        this(Collections.singletonList(source), cacheDirectory, downloadThreads);
+    }
+
+    public Fetcher(List<String> sources, String cacheDirectory)
+            throws CacheDirectoryNotFound, IOException {
+        this(sources, cacheDirectory, DEFAULT_DOWNLOAD_THREADS);
+    }
+
+    public Fetcher(List<String> sources, String cacheDirectory, int downloadThreads)
+            throws CacheDirectoryNotFound, IOException {
+        this(createBackend(sources), cacheDirectory, downloadThreads);
+    }
+
+    public Fetcher(SourceBackend backend, String cacheDirectory, int downloadThreads)
+            throws CacheDirectoryNotFound, IOException {
         this.cache = new Cache(cacheDirectory);
-        File f = new File(source);
-        if (f.exists() && f.isDirectory()) {
-            this.source = new URL("file://" + f.getAbsolutePath());
-        } else {
-            this.source = new URL(source);
-        }
-    }
-
-    private static void decompress(InputStream is, File cachedFile) throws IOException {
-        byte[] inputBuffer = new byte[FETCHER_BUFFER_SIZE];
-        byte[] outputBuffer = new byte[FETCHER_BUFFER_SIZE * 2];
-        boolean hashesMatch = true;
-        FileOutputStream fos = new FileOutputStream(cachedFile);
-        BufferedOutputStream dest = new BufferedOutputStream(fos, FETCHER_BUFFER_SIZE);
-        BufferedInputStream stream = new BufferedInputStream(is, FETCHER_BUFFER_SIZE);
-        int pos = cachedFile.getAbsolutePath().lastIndexOf(File.separator);
-        String hash = cachedFile.getAbsolutePath()
-                .substring(pos - 2)
+        this.backend = backend;
+        this.inFlightDownloads = new ConcurrentHashMap<>();
+        this.rawFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.downloadThreads = downloadThreads;
+        this.downloadExecutor = Executors.newFixedThreadPool(downloadThreads,
+                createThreadFactory("cvmfs-fetcher-"));
+        this.digestExecutor = Executors.newCachedThreadPool(
+                createThreadFactory("cvmfs-digest-"));
+    }
+
+    private static ThreadFactory createThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Chooses the backend for the given sources: a single local directory,
+     * either as a path or as a file:// URL, is read from disk, anything else
+     * is accessed through its URL
+     *
+     * @param sources locations of the repository
+     * @return the backend to retrieve files from the sources
+     */
+    protected static SourceBackend createBackend(List<String> sources) throws IOException {
+        if (sources.size() == 1) {
+            String source = sources.get(0);
+            File f = source.startsWith("file:") ? new File(new URL(source).getPath())
+                    : new File(source);
+            if (f.isDirectory())
+                return new LocalSourceBackend(f);
+        }
+        List<String> mirrors = new ArrayList<>();
+        for (String source : sources) {
+            File f = new File(source);
+            if (f.exists() && f.isDirectory()) {
+                mirrors.add("file://" + f.getAbsolutePath());
+            } else {
+                mirrors.add(source);
+            }
+        }
+        return new HttpSourceBackend(mirrors);
+    }
+
+    /**
+     * Extracts the content hash from the name of an object in the CAS
+     *
+     * @param fileName name of the object, such as data/ab/cdef...
+     * @return the 40 hexadecimal characters of the object hash
+     */
+    protected static String objectHash(String fileName) {
+        int pos = fileName.lastIndexOf(File.separator);
+        return fileName.substring(pos - 2)
                 .replace(File.separator, "")
                 .substring(0, 40);
-        Inflater inflater = new Inflater();
-        int bytesRead;
+    }
+
+    /**
+     * Extracts the content hash type from the name of an object in the CAS
+     *
+     * @param fileName name of the object, such as data/ab/cdef...-rmd160C
+     * @return the hash type given by the suffix that follows the hash
+     */
+    protected static int objectHashType(String fileName) {
+        int pos = fileName.lastIndexOf(File.separator);
+        return ContentHashTypes.fromSuffix(fileName.substring(pos + 39));
+    }
+
+    /**
+     * Opens a stream over the decompressed content of an object coming
+     * directly from the source. The object is written to the cache while
+     * it is being read
+     */
+    protected InputStream openStreamFromSource(String fileName) throws IOException {
+        return openStreamFromSource(fileName, null);
+    }
+
+    /**
+     * @param finishedCallback run once the object has been stored in the
+     *                         cache or discarded, or null
+     */
+    private InputStream openStreamFromSource(String fileName, Runnable finishedCallback)
+            throws IOException {
+        MessageDigest digest;
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA1");
-            while ((bytesRead = stream.read(inputBuffer)) != -1) {
-                digest.update(inputBuffer, 0, bytesRead);
-                inflater.setInput(inputBuffer, 0, bytesRead);
-                while (!inflater.needsInput()) {
-                    int bytesDecompressed = inflater.inflate(outputBuffer);
-                    dest.write(outputBuffer, 0, bytesDecompressed);
-                }
-            }
-            String encodedDigest = Common.binaryBufferToHexString(digest.digest());
-            if (!encodedDigest.equals(hash)) {
-                System.err.println("Downloaded hashes do not match!\n" +
-                "\tDownloaded: " + encodedDigest + "\n" +
-                "\tExpected:   " + hash);
-                hashesMatch = false;
+            digest = ContentHashTypes.createDigest(objectHashType(fileName));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        File temporaryFile = cache.addTemporary(fileName);
+        InputStream rawStream;
+        try {
+            rawStream = backend.openStream(fileName);
+        } catch (IOException e) {
+            temporaryFile.delete();
+            throw e;
+        }
+        return new InflatingCacheStream(rawStream, temporaryFile, cache, fileName,
+                objectHash(fileName), new ContentVerifier(digest, digestExecutor),
+                finishedCallback);
+    }
+
+    /**
+     * Downloads an object into a temporary file and moves it to its final
+     * location only once it has been verified, so that readers of the cache
+     * never see a partially written object
+     *
+     * @return the cached file, or null if the downloaded object was corrupted
+     */
+    protected File retrieveFileFromSource(String fileName) throws FileNotFoundInRepositoryException {
+        InputStream stream = null;
+        try {
+            stream = openStreamFromSource(fileName);
+            byte[] buffer = new byte[FETCHER_BUFFER_SIZE];
+            while (stream.read(buffer) != -1) {
+                // the stream itself stores the object in the cache
             }
-        } catch (DataFormatException | NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            hashesMatch = false;
+        } catch (ContentHashMismatch e) {
+            System.err.println(e.getMessage());
+        } catch (IOException e) {
+            throw new FileNotFoundInRepositoryException(fileName);
         } finally {
-            dest.close();
-            stream.close();
-            inflater.end();
-            if (!hashesMatch) {
-                // remove the recently downloaded file because it is corrupted
-                cachedFile.delete();
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
+        return cache.get(fileName);
+    }
 
+    /**
+     * Schedules the download of an object in the download pool, unless the
+     * very same object is already being downloaded. In that case the pending
+     * download is shared by all the callers.
+     * If downloads start waiting for each other, the queued prefetches are
+     * cancelled to leave the bandwidth to the objects actually requested.
+     *
+     * @param fileName name of the file in the repository
+     * @return a future that completes once the object is in the cache
+     */
+    protected Future<File> scheduleDownload(String fileName) {
+        Future<File> download = startDownload(fileName, false);
+        Prefetcher currentPrefetcher = prefetcher;
+        if (currentPrefetcher != null && isCongested())
+            currentPrefetcher.cancelQueued();
+        return download;
     }
 
-    protected static void downloadContentAndStore(File cachedFile, String fileURL) throws IOException {
-        BufferedInputStream bin = null;
-        BufferedOutputStream fout = null;
-        try {
-            bin = new BufferedInputStream(new URL(fileURL).openStream(), FETCHER_BUFFER_SIZE);
-            fout = new BufferedOutputStream(new FileOutputStream(cachedFile), FETCHER_BUFFER_SIZE);
+    /**
+     * Downloads an object in the calling thread on behalf of the prefetcher.
+     * Requests for the same object made meanwhile share this download
+     *
+     * @param fileName name of the file in the repository
+     * @return a future that completes once the object is in the cache
+     */
+    Future<File> prefetchFile(String fileName) {
+        return startDownload(fileName, true);
+    }
 
-            byte data[] = new byte[FETCHER_BUFFER_SIZE];
-            int count;
-            while ((count = bin.read(data, 0, FETCHER_BUFFER_SIZE)) != -1) {
-                fout.write(data, 0, count);
+    private Future<File> startDownload(final String fileName, boolean inCallingThread) {
+        Future<File> pending = inFlightDownloads.get(fileName);
+        if (pending != null) {
+            coalescedDownloads.incrementAndGet();
+            return pending;
+        }
+        FutureTask<File> download = new FutureTask<File>(new Callable<File>() {
+            public File call() throws Exception {
+                queuedDownloads.decrementAndGet();
+                activeDownloads.incrementAndGet();
+                try {
+                    File cachedFile = getCachedObject(fileName);
+                    if (cachedFile != null)
+                        return cachedFile;
+                    return retrieveFileFromSource(fileName);
+                } finally {
+                    activeDownloads.decrementAndGet();
+                }
             }
-        } finally {
-            if (bin != null)
-                bin.close();
-            if (fout != null)
-                fout.close();
+        }) {
+            @Override
+            protected void done() {
+                inFlightDownloads.remove(fileName, this);
+            }
+        };
+        pending = inFlightDownloads.putIfAbsent(fileName, download);
+        if (pending != null) {
+            coalescedDownloads.incrementAndGet();
+            return pending;
+        }
+        queuedDownloads.incrementAndGet();
+        if (inCallingThread) {
+            download.run();
+            return download;
+        }
+        try {
+            downloadExecutor.execute(download);
+        } catch (RejectedExecutionException e) {
+            // the pool has been shut down, download in the calling thread
+            download.run();
         }
+        return download;
     }
 
-    protected static void downloadContentAndDecompress(File cachedFile, String fileURL) throws IOException {
-        URL url = new URL(fileURL);
-        URLConnection connection = url.openConnection();
-        InputStream rawStream = connection.getInputStream();
-        Fetcher.decompress(rawStream, cachedFile);
-    }
+    /**
+     * Download of an object that is streamed to a reader by openFile. It is
+     * registered as in flight, so other requests for the object wait for the
+     * reader to finish instead of downloading it again. If the reader stops
+     * before the object is stored in the cache, the first request that waits
+     * for it starts a regular download, shared by the others
+     */
+    protected class StreamingDownload implements Future<File>, Runnable {
+        private final String fileName;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile File cachedFile;
+        private Future<File> fallback;
+
+        StreamingDownload(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * Called once the streamed object has been stored or discarded
+         */
+        public void run() {
+            inFlightDownloads.remove(fileName, this);
+            cachedFile = getCachedObject(fileName);
+            finished.countDown();
+        }
 
-    protected String makeFileURL(String fileName) {
-        return source.toString() + File.separator + fileName;
+        private synchronized Future<File> fallback() {
+            if (fallback == null)
+                fallback = startDownload(fileName, false);
+            return fallback;
+        }
+
+        public File get() throws InterruptedException, ExecutionException {
+            finished.await();
+            File file = cachedFile;
+            return file != null ? file : fallback().get();
+        }
+
+        public File get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (!finished.await(timeout, unit))
+                throw new TimeoutException();
+            File file = cachedFile;
+            if (file != null)
+                return file;
+            return fallback().get(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // the reader owns the stream
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public synchronized boolean isDone() {
+            return finished.getCount() == 0 &&
+                    (cachedFile != null || (fallback != null && fallback.isDone()));
+        }
     }
 
-    protected File retrieveFileFromSource(String fileName) throws FileNotFoundInRepositoryException {
-        String fileURL = makeFileURL(fileName);
-        File cachedFile = cache.add(fileName);
+    private File waitForDownload(String fileName, Future<File> download)
+            throws FileNotFoundInRepositoryException {
         try {
-            Fetcher.downloadContentAndDecompress(cachedFile, fileURL);
-        } catch (IOException e) {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundInRepositoryException(fileName);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileNotFoundInRepositoryException)
+                throw (FileNotFoundInRepositoryException) e.getCause();
             throw new FileNotFoundInRepositoryException(fileName);
         }
-        return cache.get(fileName);
     }
 
     /**
      * Method to retrieve a file from the cache if exists, or from
      * the repository if it doesn't. In case it has to be retrieved from
-     * the repository it won't be decompressed
+     * the repository it won't be decompressed.
+     * A cached copy is used without contacting the source while its time to
+     * live holds, see setRawFileTTL. Afterwards it is revalidated with a
+     * conditional request and only downloaded again if it changed.
+     * Files that are missing in the repository are remembered in the same way.
      *
      * @param fileName name of the file in the repository
      * @return a read-only file object that represents the cached file
@@ -130,16 +376,237 @@ public class Fetcher {
      */
     public File retrieveRawFile(String fileName) throws IOException {
         File cachedFile = cache.add(fileName);
-        String fileURL = makeFileURL(fileName);
-        Fetcher.downloadContentAndStore(cachedFile, fileURL);
+        File metadataFile = cache.add(fileName + RawFileMetadata.METADATA_SUFFIX);
+        rawFiles.add(fileName);
+        RawFileMetadata metadata = RawFileMetadata.load(metadataFile);
+        if (metadata != null && metadata.isFresh(System.currentTimeMillis())) {
+            if (metadata.isMissing())
+                throw new FileNotFoundException(fileName);
+            if (cachedFile.isFile())
+                return cachedFile;
+        }
+        if (metadata == null || metadata.isMissing() || !cachedFile.isFile())
+            metadata = new RawFileMetadata();
+        File temporaryFile = cache.addTemporary(fileName);
+        try {
+            if (backend.downloadIfModified(fileName, temporaryFile, metadata))
+                cache.commit(temporaryFile, fileName);
+            else
+                temporaryFile.delete();
+        } catch (FileNotFoundException e) {
+            temporaryFile.delete();
+            metadata = new RawFileMetadata();
+            metadata.setMissing(true);
+            storeRawFileMetadata(metadata, metadataFile);
+            throw e;
+        } catch (IOException e) {
+            temporaryFile.delete();
+            throw e;
+        }
+        storeRawFileMetadata(metadata, metadataFile);
         return cache.get(fileName);
     }
 
-    public File retrieveFile(String fileName) throws FileNotFoundInRepositoryException {
+    private void storeRawFileMetadata(RawFileMetadata metadata, File metadataFile) {
+        metadata.setFetched(System.currentTimeMillis());
+        metadata.setTTL(rawFileTTL);
+        try {
+            metadata.store(metadataFile);
+        } catch (IOException e) {
+            // the file will simply be revalidated next time
+            metadataFile.delete();
+        }
+    }
+
+    /**
+     * Sets for how long raw files can be used from the cache without
+     * contacting the source, typically the TTL announced by the manifest.
+     * It also applies to the raw files already retrieved, so that following
+     * instances sharing the cache can use them right away.
+     *
+     * @param seconds time to live of the raw files in seconds
+     */
+    public void setRawFileTTL(int seconds) {
+        rawFileTTL = seconds;
+        for (String fileName : rawFiles) {
+            File metadataFile = cache.add(fileName + RawFileMetadata.METADATA_SUFFIX);
+            RawFileMetadata metadata = RawFileMetadata.load(metadataFile);
+            if (metadata != null && metadata.getTTL() != seconds) {
+                metadata.setTTL(seconds);
+                try {
+                    metadata.store(metadataFile);
+                } catch (IOException e) {
+                    metadataFile.delete();
+                }
+            }
+        }
+    }
+
+    public int getRawFileTTL() {
+        return rawFileTTL;
+    }
+
+    /**
+     * Looks an object up in the cache. When cached objects must be verified,
+     * the ones stored without checking their content hash are ignored, so
+     * that they are retrieved again
+     *
+     * @return the cached object, or null if it has to be retrieved
+     */
+    protected File getCachedObject(String fileName) {
         File cachedFile = cache.get(fileName);
+        if (cachedFile != null && verifyCachedObjects && !cache.isVerified(fileName))
+            return null;
+        return cachedFile;
+    }
+
+    /**
+     * Sets whether objects found in the cache must have been verified when
+     * they were stored. Objects that were verified are used right away,
+     * without hashing them again, while the rest are retrieved again from
+     * the source. Disabled by default.
+     *
+     * @param verifyCachedObjects true to only trust verified cached objects
+     */
+    public void setVerifyCachedObjects(boolean verifyCachedObjects) {
+        this.verifyCachedObjects = verifyCachedObjects;
+    }
+
+    public boolean getVerifyCachedObjects() {
+        return verifyCachedObjects;
+    }
+
+    public File retrieveFile(String fileName) throws FileNotFoundInRepositoryException {
+        File cachedFile = getCachedObject(fileName);
         if (cachedFile == null) {
-            return retrieveFileFromSource(fileName);
+            return waitForDownload(fileName, scheduleDownload(fileName));
         }
         return cachedFile;
     }
+
+    /**
+     * Requests an object without waiting for it to be retrieved
+     *
+     * @param fileName name of the file in the repository
+     * @return a future that completes once the object is in the cache
+     */
+    public Future<File> retrieveFileAsync(String fileName) {
+        final File cachedFile = getCachedObject(fileName);
+        if (cachedFile == null)
+            return scheduleDownload(fileName);
+        FutureTask<File> done = new FutureTask<>(new Callable<File>() {
+            public File call() {
+                return cachedFile;
+            }
+        });
+        done.run();
+        return done;
+    }
+
+    /**
+     * Opens an object of the repository for reading. Objects already in the
+     * cache are read from disk. Otherwise the object is inflated while it is
+     * downloaded, so the first bytes are available as soon as the first
+     * compressed block arrives. The same bytes are written to the cache, and
+     * the cache entry is only kept if the content hash matches once the whole
+     * object has been read. A mismatch is reported to the reader as an
+     * IOException at the end of the stream. While the object is streamed,
+     * other requests for it wait for the stream instead of downloading it
+     * again, so the stream must be closed.
+     *
+     * @param fileName name of the file in the repository
+     * @return a stream over the decompressed content of the object
+     * @throws FileNotFoundInRepositoryException if the object cannot be retrieved
+     */
+    public InputStream openFile(String fileName) throws FileNotFoundInRepositoryException {
+        File cachedFile = getCachedObject(fileName);
+        if (cachedFile == null) {
+            Future<File> pending = inFlightDownloads.get(fileName);
+            if (pending == null) {
+                StreamingDownload streaming = new StreamingDownload(fileName);
+                pending = inFlightDownloads.putIfAbsent(fileName, streaming);
+                if (pending == null) {
+                    try {
+                        return openStreamFromSource(fileName, streaming);
+                    } catch (IOException e) {
+                        streaming.run();
+                        throw new FileNotFoundInRepositoryException(fileName);
+                    }
+                }
+            }
+            coalescedDownloads.incrementAndGet();
+            cachedFile = waitForDownload(fileName, pending);
+        }
+        try {
+            if (cachedFile != null)
+                return new FileInputStream(cachedFile);
+            return openStreamFromSource(fileName);
+        } catch (IOException e) {
+            throw new FileNotFoundInRepositoryException(fileName);
+        }
+    }
+
+    /**
+     * @return true if there are more downloads, prefetches included, than
+     * threads in the download pool
+     */
+    public boolean isCongested() {
+        return activeDownloads.get() + queuedDownloads.get() > downloadThreads;
+    }
+
+    /**
+     * Sets the prefetcher whose queued prefetches are cancelled when the
+     * download pool is congested
+     *
+     * @param prefetcher the prefetcher, or null to stop notifying it
+     */
+    public void setPrefetcher(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * @return number of requests that joined an already in-flight download
+     * instead of starting a new one
+     */
+    public long getCoalescedDownloads() {
+        return coalescedDownloads.get();
+    }
+
+    /**
+     * @return number of downloads waiting for a free thread in the pool
+     */
+    public int getQueuedDownloads() {
+        return queuedDownloads.get();
+    }
+
+    /**
+     * @return number of downloads currently running
+     */
+    public int getActiveDownloads() {
+        return activeDownloads.get();
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public SourceBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Stops the download pool and the prefetcher, if any. Downloads requested
+     * afterwards are run in the calling thread
+     */
+    public void shutdown() {
+        Prefetcher currentPrefetcher = prefetcher;
+        if (currentPrefetcher != null)
+            currentPrefetcher.shutdown();
+        downloadExecutor.shutdown();
+        digestExecutor.shutdown();
+    }
 }
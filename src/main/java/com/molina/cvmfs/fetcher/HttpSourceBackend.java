@@ -0,0 +1,257 @@
+package com.molina.cvmfs.fetcher;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Retrieves files from a list of mirrors of the same repository.
+ *         Connections are requested as keep-alive and are always fully consumed or
+ *         closed, so the JVM pools and reuses them across requests to the same mirror.
+ *         The time each mirror takes to answer is measured and requests are routed to
+ *         the fastest healthy mirror, failing over to the next one on errors.
+ */
+public class HttpSourceBackend implements SourceBackend {
+
+    public static final int CONNECT_TIMEOUT = 5000;
+    public static final int READ_TIMEOUT = 30000;
+    public static final long FAILURE_BACKOFF = 30000;
+    private static final double LATENCY_WEIGHT = 0.3;
+    private static final int BUFFER_SIZE = 8192;
+
+    protected List<Mirror> mirrors;
+
+    public HttpSourceBackend(List<String> mirrorURLs) throws MalformedURLException {
+        if (mirrorURLs == null || mirrorURLs.isEmpty())
+            throw new MalformedURLException("No mirror given");
+        mirrors = new ArrayList<>();
+        for (String url : mirrorURLs) {
+            mirrors.add(new Mirror(new URL(url)));
+        }
+    }
+
+    public HttpSourceBackend(String mirrorURL) throws MalformedURLException {
+        this(Collections.singletonList(mirrorURL));
+    }
+
+    /**
+     * @return the mirrors ordered by preference: healthy mirrors from the fastest
+     * to the slowest, followed by the ones that recently failed
+     */
+    public List<Mirror> rankMirrors() {
+        final long now = System.currentTimeMillis();
+        List<Mirror> ranking = new ArrayList<>(mirrors);
+        Collections.sort(ranking, new Comparator<Mirror>() {
+            public int compare(Mirror m1, Mirror m2) {
+                boolean healthy1 = m1.isHealthy(now);
+                boolean healthy2 = m2.isHealthy(now);
+                if (healthy1 != healthy2)
+                    return healthy1 ? -1 : 1;
+                if (!healthy1)
+                    return Long.compare(m1.failedUntil, m2.failedUntil);
+                return Double.compare(m1.latency, m2.latency);
+            }
+        });
+        return ranking;
+    }
+
+    /**
+     * Opens a stream to a file of the repository, trying the mirrors in
+     * order of preference until one of them serves it
+     *
+     * @param fileName name of the file relative to the repository root
+     * @return the content of the file
+     * @throws FileNotFoundException if no mirror has the file
+     * @throws IOException           if no mirror could be reached
+     */
+    public InputStream openStream(String fileName) throws IOException {
+        return connect(fileName, null).getInputStream();
+    }
+
+    /**
+     * Downloads a file unless it has not changed since it was retrieved.
+     * The validators recorded in the metadata are sent as If-None-Match and
+     * If-Modified-Since headers, and the metadata is updated with the ones
+     * of the new response
+     *
+     * @param fileName    name of the file relative to the repository root
+     * @param destination where the file is written if it changed
+     * @param metadata    validators of the cached copy, updated in place
+     * @return false if the source answered that the cached copy is still valid
+     * @throws FileNotFoundException if no mirror has the file
+     * @throws IOException           if no mirror could be reached
+     */
+    public boolean downloadIfModified(String fileName, File destination,
+                                      RawFileMetadata metadata) throws IOException {
+        URLConnection connection = connect(fileName, metadata);
+        if (connection == null)
+            return false;
+        InputStream is = connection.getInputStream();
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(destination);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1)
+                os.write(buffer, 0, bytesRead);
+        } finally {
+            is.close();
+            if (os != null)
+                os.close();
+        }
+        metadata.setETag(connection.getHeaderField("ETag"));
+        metadata.setLastModified(connection.getHeaderField("Last-Modified"));
+        return true;
+    }
+
+    /**
+     * Tries the mirrors in order of preference until one of them answers
+     *
+     * @return the established connection, or null if the mirror answered
+     * that the copy described by the validators has not been modified
+     */
+    protected URLConnection connect(String fileName, RawFileMetadata validators)
+            throws IOException {
+        IOException lastError = null;
+        boolean notFound = false;
+        for (Mirror mirror : rankMirrors()) {
+            try {
+                return mirror.connect(fileName, validators);
+            } catch (FileNotFoundException e) {
+                notFound = true;
+                lastError = e;
+            } catch (IOException e) {
+                mirror.recordFailure();
+                lastError = e;
+            }
+        }
+        if (notFound)
+            throw new FileNotFoundException(fileName);
+        throw lastError;
+    }
+
+    public List<Mirror> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    /**
+     * Health and latency bookkeeping for a single mirror
+     */
+    public static class Mirror {
+
+        protected URL baseURL;
+        protected volatile double latency;
+        protected volatile long failedUntil;
+        protected AtomicLong requests;
+        protected AtomicLong failures;
+
+        public Mirror(URL baseURL) {
+            this.baseURL = baseURL;
+            this.requests = new AtomicLong();
+            this.failures = new AtomicLong();
+        }
+
+        protected URL makeFileURL(String fileName) throws MalformedURLException {
+            String base = baseURL.toString();
+            if (!base.endsWith("/") && !fileName.startsWith("/"))
+                base += "/";
+            return new URL(base + fileName);
+        }
+
+        protected URLConnection connect(String fileName, RawFileMetadata validators)
+                throws IOException {
+            requests.incrementAndGet();
+            long start = System.nanoTime();
+            URLConnection connection = makeFileURL(fileName).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setUseCaches(false);
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection httpConnection = (HttpURLConnection) connection;
+                httpConnection.setRequestProperty("Connection", "keep-alive");
+                if (validators != null) {
+                    if (validators.getETag() != null)
+                        httpConnection.setRequestProperty("If-None-Match", validators.getETag());
+                    if (validators.getLastModified() != null)
+                        httpConnection.setRequestProperty("If-Modified-Since",
+                                validators.getLastModified());
+                }
+                int responseCode = httpConnection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    recordLatency((System.nanoTime() - start) / 1000000.0);
+                    discard(httpConnection.getInputStream());
+                    return null;
+                }
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    // consume the error body so the connection can be reused
+                    discard(httpConnection.getErrorStream());
+                    if (responseCode == HttpURLConnection.HTTP_NOT_FOUND)
+                        throw new FileNotFoundException(fileName);
+                    throw new IOException("Mirror " + baseURL + " answered " +
+                            responseCode + " for " + fileName);
+                }
+            } else {
+                connection.connect();
+            }
+            recordLatency((System.nanoTime() - start) / 1000000.0);
+            return connection;
+        }
+
+        private static void discard(InputStream stream) {
+            if (stream == null)
+                return;
+            byte[] buffer = new byte[1024];
+            try {
+                while (stream.read(buffer) != -1) {
+                    // drain
+                }
+                stream.close();
+            } catch (IOException e) {
+                // the connection will simply not be reused
+            }
+        }
+
+        protected void recordLatency(double milliseconds) {
+            if (latency == 0)
+                latency = milliseconds;
+            else
+                latency = LATENCY_WEIGHT * milliseconds + (1 - LATENCY_WEIGHT) * latency;
+            failedUntil = 0;
+        }
+
+        protected void recordFailure() {
+            failures.incrementAndGet();
+            failedUntil = System.currentTimeMillis() + FAILURE_BACKOFF;
+        }
+
+        public boolean isHealthy(long now) {
+            return failedUntil <= now;
+        }
+
+        public URL getBaseURL() {
+            return baseURL;
+        }
+
+        /**
+         * @return smoothed time in milliseconds the mirror takes to answer a
+         * request, or 0 if it has not been measured yet
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.molina.cvmfs.fetcher;
+
+import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.fetcher.exception.ContentHashMismatch;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Inflates a compressed object while it is being read from the source.
+ *         The decompressed bytes are handed to the reader and written to a
+ *         temporary cache file at the same time, and a {@link ContentVerifier}
+ *         computes the content hash over the compressed bytes as they arrive.
+ *         Once the end of the object is reached the temporary file is moved into
+ *         the cache as a verified object, but only if the hash matches; otherwise
+ *         it is discarded and the reader gets a {@link ContentHashMismatch}.
+ *         Closing the stream before the end discards the temporary file as well.
+ *         An optional callback is run once the object has been stored or
+ *         discarded, whichever comes first.
+ */
+class InflatingCacheStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private InputStream compressed;
+    private OutputStream temporaryOutput;
+    private File temporaryFile;
+    private Cache cache;
+    private String fileName;
+    private String expectedHash;
+    private ContentVerifier verifier;
+    private Inflater inflater;
+    private byte[] inputBuffer;
+    private boolean finished;
+    private boolean closed;
+    private Runnable finishedCallback;
+
+    public InflatingCacheStream(InputStream compressed, File temporaryFile, Cache cache,
+                                String fileName, String expectedHash,
+                                ContentVerifier verifier) throws IOException {
+        this(compressed, temporaryFile, cache, fileName, expectedHash, verifier, null);
+    }
+
+    /**
+     * @param finishedCallback run once the object is stored in the cache or
+     *                         discarded, or null
+     */
+    public InflatingCacheStream(InputStream compressed, File temporaryFile, Cache cache,
+                                String fileName, String expectedHash,
+                                ContentVerifier verifier, Runnable finishedCallback)
+            throws IOException {
+        this.finishedCallback = finishedCallback;
+        this.verifier = verifier;
+        this.compressed = compressed;
+        this.temporaryFile = temporaryFile;
+        this.cache = cache;
+        this.fileName = fileName;
+        this.expectedHash = expectedHash;
+        this.temporaryOutput = new BufferedOutputStream(
+                new FileOutputStream(temporaryFile), BUFFER_SIZE);
+        this.inflater = new Inflater();
+        this.inputBuffer = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int bytesRead;
+        while ((bytesRead = read(single, 0, 1)) == 0) {
+            // inflater needed more input
+        }
+        return bytesRead == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        if (len == 0)
+            return 0;
+        try {
+            while (!finished) {
+                if (inflater.needsInput() && !fill())
+                    break;
+                int bytesDecompressed = inflater.inflate(b, off, len);
+                if (bytesDecompressed > 0) {
+                    temporaryOutput.write(b, off, bytesDecompressed);
+                    return bytesDecompressed;
+                }
+                if (inflater.finished() || inflater.needsDictionary())
+                    break;
+            }
+        } catch (DataFormatException e) {
+            abort();
+            throw new IOException(e);
+        }
+        if (!finished)
+            complete();
+        return -1;
+    }
+
+    /**
+     * Feeds the inflater with the next block of compressed data
+     *
+     * @return false if the source has no more data
+     */
+    private boolean fill() throws IOException {
+        int bytesRead = compressed.read(inputBuffer);
+        if (bytesRead == -1)
+            return false;
+        verifier.update(inputBuffer, 0, bytesRead);
+        inflater.setInput(inputBuffer, 0, bytesRead);
+        return true;
+    }
+
+    /**
+     * Consumes whatever is left of the source, checks the content hash and
+     * moves the temporary file into the cache
+     */
+    private void complete() throws IOException {
+        finished = true;
+        try {
+            try {
+                int bytesRead;
+                while ((bytesRead = compressed.read(inputBuffer)) != -1)
+                    verifier.update(inputBuffer, 0, bytesRead);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            temporaryOutput.close();
+            String encodedDigest;
+            try {
+                encodedDigest = Common.binaryBufferToHexString(verifier.digest());
+            } catch (IOException e) {
+                temporaryFile.delete();
+                throw e;
+            }
+            if (!encodedDigest.equals(expectedHash)) {
+                temporaryFile.delete();
+                throw new ContentHashMismatch(expectedHash, encodedDigest);
+            }
+            cache.commit(temporaryFile, fileName, true);
+        } finally {
+            signalFinished();
+        }
+    }
+
+    private void abort() throws IOException {
+        finished = true;
+        try {
+            verifier.cancel();
+            temporaryOutput.close();
+            temporaryFile.delete();
+        } finally {
+            signalFinished();
+        }
+    }
+
+    private void signalFinished() {
+        Runnable callback = finishedCallback;
+        finishedCallback = null;
+        if (callback != null)
+            callback.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (!finished)
+                abort();
+        } finally {
+            inflater.end();
+            try {
+                compressed.close();
+            } finally {
+                signalFinished();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.molina.cvmfs.fetcher;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Reads a repository straight from a local directory, as found on
+ *         stratum 0 and stratum 1 servers. Large objects are memory mapped and
+ *         fed to the inflater without intermediate copies through streams, and
+ *         raw files are copied into the cache with FileChannel.transferTo.
+ */
+public class LocalSourceBackend implements SourceBackend {
+
+    /**
+     * Files smaller than this are read through their channel, as mapping
+     * them costs more than copying them
+     */
+    public static final long MAP_THRESHOLD = 256 * 1024;
+
+    protected File repositoryDirectory;
+
+    public LocalSourceBackend(File repositoryDirectory) throws FileNotFoundException {
+        if (!repositoryDirectory.isDirectory())
+            throw new FileNotFoundException(repositoryDirectory.getAbsolutePath());
+        this.repositoryDirectory = repositoryDirectory.getAbsoluteFile();
+    }
+
+    protected File resolve(String fileName) {
+        return new File(repositoryDirectory, fileName);
+    }
+
+    public InputStream openStream(String fileName) throws IOException {
+        FileInputStream fis = new FileInputStream(resolve(fileName));
+        FileChannel channel = fis.getChannel();
+        long size = channel.size();
+        if (size < MAP_THRESHOLD || size > Integer.MAX_VALUE)
+            return Channels.newInputStream(channel);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new ByteBufferInputStream(buffer);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            fis.close();
+        }
+    }
+
+    public boolean downloadIfModified(String fileName, File destination,
+                                      RawFileMetadata metadata) throws IOException {
+        File sourceFile = resolve(fileName);
+        if (!sourceFile.isFile())
+            throw new FileNotFoundException(fileName);
+        String lastModified = String.valueOf(sourceFile.lastModified());
+        if (lastModified.equals(metadata.getLastModified()))
+            return false;
+        FileInputStream fis = new FileInputStream(sourceFile);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(destination);
+            FileChannel source = fis.getChannel();
+            FileChannel target = fos.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size)
+                position += source.transferTo(position, size - position, target);
+        } finally {
+            fis.close();
+            if (fos != null)
+                fos.close();
+        }
+        metadata.setETag(null);
+        metadata.setLastModified(lastModified);
+        return true;
+    }
+
+    public File getRepositoryDirectory() {
+        return repositoryDirectory;
+    }
+}
@@ -0,0 +1,163 @@
+package com.molina.cvmfs.fetcher;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Downloads objects in the background before they are requested, such
+ *         as the files of a directory that has just been listed. Prefetches are
+ *         run by a few low priority threads of their own, and the objects waiting
+ *         to be prefetched can take at most a budget of bytes. Whenever the
+ *         fetcher gets congested by the objects actually requested, the queued
+ *         prefetches are cancelled, while the ones already running are completed.
+ */
+public class Prefetcher {
+    public static final int DEFAULT_CONCURRENCY = 2;
+    public static final long DEFAULT_BYTE_BUDGET = 64 * 1024 * 1024;
+
+    protected Fetcher fetcher;
+    protected ThreadPoolExecutor executor;
+    protected long byteBudget;
+    protected ConcurrentMap<String, PrefetchTask> queuedPrefetches;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong completedPrefetches = new AtomicLong();
+    private final AtomicLong cancelledPrefetches = new AtomicLong();
+
+    public Prefetcher(Fetcher fetcher) {
+        this(fetcher, DEFAULT_CONCURRENCY, DEFAULT_BYTE_BUDGET);
+    }
+
+    /**
+     * @param fetcher     fetcher that retrieves the objects
+     * @param concurrency maximum number of prefetches running at once
+     * @param byteBudget  maximum number of bytes of the objects waiting to be
+     *                    prefetched or being prefetched
+     */
+    public Prefetcher(Fetcher fetcher, int concurrency, long byteBudget) {
+        this.fetcher = fetcher;
+        this.byteBudget = byteBudget;
+        this.queuedPrefetches = new ConcurrentHashMap<>();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "cvmfs-prefetcher-" +
+                                threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    protected class PrefetchTask extends FutureTask<Void> {
+        private final String fileName;
+        private final long size;
+
+        PrefetchTask(final String fileName, long size) {
+            super(new Callable<Void>() {
+                public Void call() throws Exception {
+                    if (fetcher.isCongested()) {
+                        cancelQueued();
+                        return null;
+                    }
+                    fetcher.prefetchFile(fileName).get();
+                    completedPrefetches.incrementAndGet();
+                    return null;
+                }
+            });
+            this.fileName = fileName;
+            this.size = size;
+        }
+
+        @Override
+        protected void done() {
+            queuedPrefetches.remove(fileName, this);
+            reservedBytes.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Queues an object to be downloaded in the background. Objects already
+     * cached or queued are ignored, as well as the ones that do not fit in
+     * the remaining budget
+     *
+     * @param fileName name of the file in the repository
+     * @param size     expected size of the object in bytes
+     * @return true if the object was queued
+     */
+    public boolean prefetch(String fileName, long size) {
+        if (executor.isShutdown() || queuedPrefetches.containsKey(fileName) ||
+                fetcher.getCache().add(fileName).isFile())
+            return false;
+        if (reservedBytes.addAndGet(size) > byteBudget) {
+            reservedBytes.addAndGet(-size);
+            return false;
+        }
+        PrefetchTask task = new PrefetchTask(fileName, size);
+        if (queuedPrefetches.putIfAbsent(fileName, task) != null) {
+            reservedBytes.addAndGet(-size);
+            return false;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the prefetches that have not started yet
+     */
+    public void cancelQueued() {
+        for (PrefetchTask task : queuedPrefetches.values()) {
+            if (executor.remove(task) && task.cancel(false))
+                cancelledPrefetches.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of bytes of the objects queued or being prefetched
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    public int getConcurrency() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return number of objects prefetched so far
+     */
+    public long getCompletedPrefetches() {
+        return completedPrefetches.get();
+    }
+
+    /**
+     * @return number of prefetches cancelled before they started
+     */
+    public long getCancelledPrefetches() {
+        return cancelledPrefetches.get();
+    }
+
+    /**
+     * Cancels the queued prefetches and stops the prefetch threads once the
+     * running ones complete
+     */
+    public void shutdown() {
+        cancelQueued();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,125 @@
+package com.molina.cvmfs.fetcher;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Bookkeeping of a cached raw file, such as the manifest, stored next to
+ *         it in the cache. It records when the file was retrieved, for how long
+ *         it can be used without asking the source again, and the validators
+ *         needed to revalidate it with a conditional request afterwards.
+ */
+public class RawFileMetadata {
+
+    public static final String METADATA_SUFFIX = ".meta";
+
+    protected long fetched;
+    protected int ttl;
+    protected String etag;
+    protected String lastModified;
+    protected boolean missing;
+
+    public RawFileMetadata() {
+    }
+
+    /**
+     * Reads the metadata stored in the given file
+     *
+     * @param metadataFile file written by store
+     * @return the metadata, or null if it is not available
+     */
+    public static RawFileMetadata load(File metadataFile) {
+        if (!metadataFile.isFile())
+            return null;
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(metadataFile);
+            properties.load(is);
+            RawFileMetadata metadata = new RawFileMetadata();
+            metadata.fetched = Long.parseLong(properties.getProperty("fetched", "0"));
+            metadata.ttl = Integer.parseInt(properties.getProperty("ttl", "0"));
+            metadata.etag = properties.getProperty("etag");
+            metadata.lastModified = properties.getProperty("last_modified");
+            metadata.missing = Boolean.parseBoolean(properties.getProperty("missing"));
+            return metadata;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void store(File metadataFile) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("fetched", String.valueOf(fetched));
+        properties.setProperty("ttl", String.valueOf(ttl));
+        if (etag != null)
+            properties.setProperty("etag", etag);
+        if (lastModified != null)
+            properties.setProperty("last_modified", lastModified);
+        properties.setProperty("missing", String.valueOf(missing));
+        OutputStream os = new FileOutputStream(metadataFile);
+        try {
+            properties.store(os, null);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return true if the cached copy can still be used without contacting the source
+     */
+    public boolean isFresh(long now) {
+        return now >= fetched && now < fetched + ttl * 1000L;
+    }
+
+    public long getFetched() {
+        return fetched;
+    }
+
+    public void setFetched(long fetched) {
+        this.fetched = fetched;
+    }
+
+    public int getTTL() {
+        return ttl;
+    }
+
+    public void setTTL(int ttl) {
+        this.ttl = ttl;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public void setETag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public boolean isMissing() {
+        return missing;
+    }
+
+    public void setMissing(boolean missing) {
+        this.missing = missing;
+    }
+}
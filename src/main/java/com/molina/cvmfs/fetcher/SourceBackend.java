@@ -0,0 +1,39 @@
+package com.molina.cvmfs.fetcher;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Access to the files of a repository as published by its source,
+ *         either a remote server or a local directory
+ */
+public interface SourceBackend {
+
+    /**
+     * Opens a stream to a file of the repository
+     *
+     * @param fileName name of the file relative to the repository root
+     * @return the content of the file as stored in the repository
+     * @throws FileNotFoundException if the file is not in the repository
+     * @throws IOException           if the source could not be reached
+     */
+    InputStream openStream(String fileName) throws IOException;
+
+    /**
+     * Copies a file of the repository unless it has not changed since the
+     * copy described by the metadata was retrieved
+     *
+     * @param fileName    name of the file relative to the repository root
+     * @param destination where the file is written if it changed
+     * @param metadata    validators of the cached copy, updated in place
+     * @return false if the cached copy is still valid
+     * @throws FileNotFoundException if the file is not in the repository
+     * @throws IOException           if the source could not be reached
+     */
+    boolean downloadIfModified(String fileName, File destination,
+                               RawFileMetadata metadata) throws IOException;
+}
@@ -0,0 +1,17 @@
+package com.molina.cvmfs.fetcher.exception;
+
+import java.io.IOException;
+
+/**
+ * @author Jose Molina Colmenero
+ */
+public class ContentHashMismatch extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ContentHashMismatch(String expected, String downloaded) {
+        super("Downloaded hashes do not match!\n" +
+                "\tDownloaded: " + downloaded + "\n" +
+                "\tExpected:   " + expected);
+    }
+}
@@ -1,6 +1,7 @@
 package com.molina.cvmfs.history;
 
 import com.molina.cvmfs.common.DatabaseObject;
+import com.molina.cvmfs.common.DatabaseProfile;
 
 import java.io.File;
 import java.sql.ResultSet;
@@ -21,7 +22,16 @@ public class History extends DatabaseObject {
     private String fqrn;
 
     public History(File databaseFile) throws IllegalStateException, SQLException {
-        super(databaseFile);
+        this(databaseFile, new DatabaseProfile());
+    }
+
+    /**
+     * @param databaseFile file of the history database
+     * @param profile      SQLite settings of the connection
+     */
+    public History(File databaseFile, DatabaseProfile profile)
+            throws IllegalStateException, SQLException {
+        super(databaseFile, DEFAULT_POOL_SIZE, profile);
         readProperties();
     }
 
@@ -0,0 +1,272 @@
+package com.molina.cvmfs.repository;
+
+import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.fetcher.Cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Catalogs opened by a repository, bounded by their number and by the
+ *         total size of their databases. When a bound is exceeded the least
+ *         recently used catalogs are closed and their files unpinned from the
+ *         cache. Catalogs can be acquired to protect them from being closed
+ *         while they are in use, for instance by an iterator, until they are
+ *         released. A catalog that has been closed is simply opened again the
+ *         next time it is retrieved.
+ *         <p/>
+ *         Open catalogs are also kept in a concurrent map, so that they can be
+ *         looked up without taking the lock. Such lookups only mark the
+ *         catalog as used, and it is moved away from the eviction end the
+ *         next time catalogs are evicted.
+ */
+public class CatalogRegistry {
+
+    public static final int DEFAULT_MAX_CATALOGS = 256;
+    public static final long DEFAULT_MAX_TOTAL_SIZE = 1024L * 1024 * 1024;
+
+    protected Cache cache;
+    protected int maxCatalogs;
+    protected long maxTotalSize;
+    protected long totalSize;
+    protected LinkedHashMap<String, Registration> catalogs;
+    protected ConcurrentHashMap<String, Registration> openCatalogs;
+
+    protected static class Registration {
+        final Catalog catalog;
+        final long size;
+        int references;
+        volatile boolean used;
+
+        Registration(Catalog catalog) {
+            this.catalog = catalog;
+            this.size = catalog.databaseSize();
+        }
+    }
+
+    public CatalogRegistry(Cache cache) {
+        this(cache, DEFAULT_MAX_CATALOGS, DEFAULT_MAX_TOTAL_SIZE);
+    }
+
+    /**
+     * @param cache        cache where the catalog files are pinned
+     * @param maxCatalogs  maximum number of catalogs kept open
+     * @param maxTotalSize maximum total size in bytes of the catalogs kept open
+     */
+    public CatalogRegistry(Cache cache, int maxCatalogs, long maxTotalSize) {
+        this.cache = cache;
+        this.maxCatalogs = maxCatalogs;
+        this.maxTotalSize = maxTotalSize;
+        this.catalogs = new LinkedHashMap<>(16, 0.75f, true);
+        this.openCatalogs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Looks up an open catalog without taking the lock
+     *
+     * @param catalogHash hash of the catalog
+     * @return the open catalog with that hash, or null if it is not open
+     */
+    public Catalog get(String catalogHash) {
+        Registration registration = openCatalogs.get(catalogHash);
+        if (registration == null)
+            return null;
+        registration.used = true;
+        return registration.catalog;
+    }
+
+    /**
+     * Registers a catalog that has just been opened, closing others if a
+     * bound is exceeded. If the catalog was registered meanwhile by another
+     * thread, the new one is closed and the registered one is returned
+     *
+     * @param catalog catalog whose file is pinned in the cache
+     * @return the catalog registered for its hash
+     */
+    public Catalog register(Catalog catalog) {
+        return register(catalog, false);
+    }
+
+    /**
+     * Registers a catalog, like register, and acquires the registered one
+     *
+     * @param catalog catalog whose file is pinned in the cache
+     * @param acquire true to acquire the catalog before anything is evicted
+     * @return the catalog registered for its hash
+     */
+    public Catalog register(Catalog catalog, boolean acquire) {
+        List<Catalog> evicted;
+        Catalog registered;
+        synchronized (this) {
+            Registration registration = catalogs.get(catalog.getHash());
+            if (registration == null) {
+                registration = new Registration(catalog);
+                catalogs.put(catalog.getHash(), registration);
+                openCatalogs.put(catalog.getHash(), registration);
+                totalSize += registration.size;
+            }
+            if (acquire)
+                registration.references++;
+            registered = registration.catalog;
+            evicted = evict(registered);
+        }
+        if (registered != catalog)
+            closeCatalog(catalog);
+        closeCatalogs(evicted);
+        return registered;
+    }
+
+    /**
+     * Protects an open catalog from being closed until it is released
+     *
+     * @param catalogHash hash of the catalog
+     * @return the catalog, or null if it is not open
+     */
+    public synchronized Catalog acquire(String catalogHash) {
+        Registration registration = catalogs.get(catalogHash);
+        if (registration == null)
+            return null;
+        registration.references++;
+        return registration.catalog;
+    }
+
+    /**
+     * Releases a catalog obtained with acquire, which can be closed from now
+     * on if it is not acquired by anybody else
+     *
+     * @param catalog catalog to release
+     */
+    public void release(Catalog catalog) {
+        List<Catalog> evicted;
+        synchronized (this) {
+            Registration registration = catalogs.get(catalog.getHash());
+            if (registration == null || registration.catalog != catalog ||
+                    registration.references == 0)
+                return;
+            registration.references--;
+            evicted = evict(null);
+        }
+        closeCatalogs(evicted);
+    }
+
+    /**
+     * Removes the least recently used catalogs that are not acquired until
+     * both bounds are respected
+     *
+     * @param keep catalog that must not be removed, or null
+     * @return the catalogs removed, to be closed outside of the lock
+     */
+    private List<Catalog> evict(Catalog keep) {
+        List<Catalog> evicted = Collections.emptyList();
+        if (catalogs.size() <= maxCatalogs && totalSize <= maxTotalSize)
+            return evicted;
+        // catalogs used through get since the last eviction become the most
+        // recently used ones before choosing which to remove
+        List<String> used = new ArrayList<>();
+        for (Map.Entry<String, Registration> entry : catalogs.entrySet()) {
+            if (entry.getValue().used) {
+                entry.getValue().used = false;
+                used.add(entry.getKey());
+            }
+        }
+        for (String catalogHash : used)
+            catalogs.get(catalogHash);
+        Iterator<Registration> iterator = catalogs.values().iterator();
+        while ((catalogs.size() > maxCatalogs || totalSize > maxTotalSize) &&
+                iterator.hasNext()) {
+            Registration registration = iterator.next();
+            if (registration.references > 0 || registration.catalog == keep)
+                continue;
+            iterator.remove();
+            openCatalogs.remove(registration.catalog.getHash(), registration);
+            totalSize -= registration.size;
+            if (evicted.isEmpty())
+                evicted = new ArrayList<>();
+            evicted.add(registration.catalog);
+        }
+        return evicted;
+    }
+
+    private void closeCatalogs(List<Catalog> evicted) {
+        for (Catalog catalog : evicted)
+            closeCatalog(catalog);
+    }
+
+    private boolean closeCatalog(Catalog catalog) {
+        boolean closed = catalog.close();
+        cache.unpin(Repository.makeObjectName(catalog.getHash(),
+                Catalog.CATALOG_ROOT_PREFIX));
+        return closed;
+    }
+
+    /**
+     * Closes every catalog, even the acquired ones
+     *
+     * @return true if all of them were closed successfully
+     */
+    public boolean closeAll() {
+        List<Catalog> all;
+        synchronized (this) {
+            all = new ArrayList<>(catalogs.size());
+            for (Registration registration : catalogs.values())
+                all.add(registration.catalog);
+            catalogs.clear();
+            openCatalogs.clear();
+            totalSize = 0;
+        }
+        boolean closed = true;
+        for (Catalog catalog : all) {
+            if (!closeCatalog(catalog))
+                closed = false;
+        }
+        return closed;
+    }
+
+    /**
+     * Changes the bounds, closing catalogs if they are now exceeded
+     *
+     * @param maxCatalogs  maximum number of catalogs kept open
+     * @param maxTotalSize maximum total size in bytes of the catalogs kept open
+     */
+    public void setLimits(int maxCatalogs, long maxTotalSize) {
+        List<Catalog> evicted;
+        synchronized (this) {
+            this.maxCatalogs = maxCatalogs;
+            this.maxTotalSize = maxTotalSize;
+            evicted = evict(null);
+        }
+        closeCatalogs(evicted);
+    }
+
+    public synchronized int getMaxCatalogs() {
+        return maxCatalogs;
+    }
+
+    public synchronized long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    /**
+     * @return total size in bytes of the open catalogs
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized int size() {
+        return catalogs.size();
+    }
+
+    /**
+     * @return a snapshot of the open catalogs by hash, from the least to the
+     * most recently used
+     */
+    public synchronized Map<String, Catalog> snapshot() {
+        Map<String, Catalog> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, Registration> entry : catalogs.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().catalog);
+        return snapshot;
+    }
+}
@@ -0,0 +1,27 @@
+package com.molina.cvmfs.repository;
+
+import com.molina.cvmfs.catalog.Catalog;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Receives the progress of a CatalogTreeRetriever. It is called from
+ *         the retrieval threads, possibly from several of them at once. An
+ *         exception thrown by the listener does not stop the retrieval
+ */
+public interface CatalogTreeListener {
+
+    /**
+     * @param catalog           catalog that has just been retrieved and opened
+     * @param retrievedCatalogs number of catalogs retrieved so far
+     * @param retrievedBytes    total size in bytes of the catalogs retrieved
+     *                          so far
+     */
+    void catalogRetrieved(Catalog catalog, int retrievedCatalogs, long retrievedBytes);
+
+    /**
+     * @param catalogHash hash of a catalog that could not be retrieved, whose
+     *                    nested catalogs are not retrieved either
+     */
+    void catalogFailed(String catalogHash);
+}
@@ -0,0 +1,241 @@
+package com.molina.cvmfs.repository;
+
+import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.catalog.CatalogReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Retrieves a catalog and all of its nested catalogs, recursively,
+ *         with several threads. As soon as a catalog is opened its nested
+ *         catalogs are queued, so that the downloads are pipelined through
+ *         the whole tree instead of waiting for each other. The queue is
+ *         ordered by the size the references give for the catalogs, largest
+ *         first, since big catalogs take the longest to download and tend to
+ *         have the most nested catalogs below them.
+ *         <p/>
+ *         A catalog that cannot be retrieved, or whose nested catalogs cannot
+ *         be listed, counts as failed and its subtree is skipped, while the
+ *         rest of the tree is still retrieved.
+ */
+public class CatalogTreeRetriever {
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    protected Repository repository;
+    protected int concurrency;
+    protected CatalogTreeListener listener;
+    private final AtomicInteger retrievedCatalogs = new AtomicInteger();
+    private final AtomicLong retrievedBytes = new AtomicLong();
+    private final AtomicInteger failedCatalogs = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger pendingCatalogs = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private ThreadPoolExecutor executor;
+
+    public CatalogTreeRetriever(Repository repository) {
+        this(repository, DEFAULT_CONCURRENCY, null);
+    }
+
+    /**
+     * @param repository  repository the catalogs are retrieved from
+     * @param concurrency maximum number of catalogs retrieved at once, at
+     *                    least 1
+     * @param listener    listener notified of the progress, or null
+     */
+    public CatalogTreeRetriever(Repository repository, int concurrency,
+                                CatalogTreeListener listener) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("The concurrency must be at least 1, not " +
+                    concurrency);
+        this.repository = repository;
+        this.concurrency = concurrency;
+        this.listener = listener;
+    }
+
+    /**
+     * Retrieves a catalog, ordered by the size of its reference and, among
+     * equal sizes, by the order in which they were queued
+     */
+    protected class CatalogTask implements Runnable, Comparable<CatalogTask> {
+        private final String catalogHash;
+        private final long size;
+        private final long order;
+
+        CatalogTask(String catalogHash, long size) {
+            this.catalogHash = catalogHash;
+            this.size = size;
+            this.order = sequence.getAndIncrement();
+        }
+
+        public int compareTo(CatalogTask other) {
+            int comparison = Long.compare(other.size, size);
+            return comparison != 0 ? comparison : Long.compare(order, other.order);
+        }
+
+        public void run() {
+            try {
+                retrieve(catalogHash);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                catalogFailed(catalogHash);
+            } finally {
+                if (pendingCatalogs.decrementAndGet() == 0)
+                    finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Retrieves every catalog below a catalog, blocking until all of them
+     * have been retrieved. A retriever can only be run once
+     *
+     * @param catalog catalog whose nested catalogs are retrieved, which is
+     *                acquired while they are listed
+     * @return true if all the catalogs were retrieved
+     */
+    public boolean retrieve(Catalog catalog) {
+        synchronized (this) {
+            if (executor != null)
+                throw new IllegalStateException("The catalog tree was already retrieved");
+            executor = new ThreadPoolExecutor(concurrency, concurrency,
+                    0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "cvmfs-catalog-retriever-" +
+                                    threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        try {
+            pendingCatalogs.incrementAndGet();
+            // the first catalogs are queued before any thread starts, so that
+            // they are taken in order of size too
+            List<CatalogTask> tasks = nestedTasks(catalog.getHash());
+            pendingCatalogs.addAndGet(tasks.size());
+            executor.getQueue().addAll(tasks);
+            executor.prestartAllCoreThreads();
+            if (pendingCatalogs.decrementAndGet() == 0)
+                finished.countDown();
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+        return failedCatalogs.get() == 0;
+    }
+
+    private void retrieve(String catalogHash) {
+        Catalog catalog = repository.acquireCatalog(catalogHash);
+        if (catalog == null) {
+            catalogFailed(catalogHash);
+            return;
+        }
+        List<CatalogTask> tasks;
+        try {
+            // a catalog whose nested catalogs cannot be listed is only
+            // counted as failed
+            tasks = listNested(catalog);
+            int catalogs = retrievedCatalogs.incrementAndGet();
+            long bytes = retrievedBytes.addAndGet(catalog.databaseSize());
+            if (listener != null) {
+                try {
+                    listener.catalogRetrieved(catalog, catalogs, bytes);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            repository.releaseCatalog(catalog);
+        }
+        for (CatalogTask task : tasks) {
+            pendingCatalogs.incrementAndGet();
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the retrieval was interrupted
+                pendingCatalogs.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void catalogFailed(String catalogHash) {
+        failedCatalogs.incrementAndGet();
+        if (listener != null) {
+            try {
+                listener.catalogFailed(catalogHash);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param catalogHash hash of a catalog, which is acquired while its
+     *                    nested catalogs are listed
+     * @return the tasks that retrieve its nested catalogs, or none if they
+     * could not be listed
+     */
+    private List<CatalogTask> nestedTasks(String catalogHash) {
+        Catalog catalog = repository.acquireCatalog(catalogHash);
+        if (catalog == null) {
+            catalogFailed(catalogHash);
+            return new ArrayList<>();
+        }
+        try {
+            return listNested(catalog);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            catalogFailed(catalogHash);
+            return new ArrayList<>();
+        } finally {
+            repository.releaseCatalog(catalog);
+        }
+    }
+
+    private List<CatalogTask> listNested(Catalog catalog) {
+        CatalogReference[] references = catalog.listNested();
+        List<CatalogTask> tasks = new ArrayList<>(references.length);
+        for (CatalogReference reference : references)
+            tasks.add(new CatalogTask(reference.getCatalogHash(), reference.getCatalogSize()));
+        return tasks;
+    }
+
+    /**
+     * @return number of catalogs retrieved so far, without the one the
+     * retrieval started from
+     */
+    public int getRetrievedCatalogs() {
+        return retrievedCatalogs.get();
+    }
+
+    /**
+     * @return total size in bytes of the catalogs retrieved so far
+     */
+    public long getRetrievedBytes() {
+        return retrievedBytes.get();
+    }
+
+    /**
+     * @return number of catalogs that could not be retrieved
+     */
+    public int getFailedCatalogs() {
+        return failedCatalogs.get();
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+}
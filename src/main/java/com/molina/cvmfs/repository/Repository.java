@@ -1,11 +1,17 @@
 package com.molina.cvmfs.repository;
 
 import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.catalog.CatalogIndex;
 import com.molina.cvmfs.catalog.CatalogReference;
 import com.molina.cvmfs.catalog.exception.CatalogInitializationException;
 import com.molina.cvmfs.certificate.Certificate;
 import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.common.DatabaseObject;
+import com.molina.cvmfs.common.DatabaseProfile;
+import com.molina.cvmfs.directoryentry.DirectoryEntry;
+import com.molina.cvmfs.fetcher.Cache;
 import com.molina.cvmfs.fetcher.Fetcher;
+import com.molina.cvmfs.fetcher.Prefetcher;
 import com.molina.cvmfs.history.History;
 import com.molina.cvmfs.history.RevisionTag;
 import com.molina.cvmfs.history.exception.HistoryNotFoundException;
@@ -29,15 +35,18 @@ import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * Wrapper around a CVMFS repository representation
  */
 public class Repository {
-    protected Map<String, Catalog> openedCatalogs;
+    protected CatalogRegistry openedCatalogs;
+    protected ConcurrentMap<String, FutureTask<Catalog>> loadingCatalogs =
+            new ConcurrentHashMap<>();
     protected Manifest manifest;
     protected String fqrn;
     protected String type = "unknown";
@@ -45,10 +54,13 @@ public class Repository {
     protected Date lastReplication;
     protected boolean replicating;
     protected Fetcher fetcher;
+    protected Prefetcher prefetcher;
+    protected int catalogConnections = DatabaseObject.DEFAULT_POOL_SIZE;
+    protected DatabaseProfile databaseProfile = new DatabaseProfile();
 
     public Repository(Fetcher fetcher) throws IOException, RootFileException {
         this.fetcher = fetcher;
-        openedCatalogs = new HashMap<>();
+        openedCatalogs = new CatalogRegistry(fetcher.getCache());
         readManifest();
         tryToGetLastReplicationTimestamp();
         tryToGetReplicationState();
@@ -76,13 +88,23 @@ public class Repository {
     }
 
     public boolean unloadCatalogs() {
-        boolean closed = true;
-        for (Catalog c : openedCatalogs.values()) {
-            if (!c.close())
-                closed = false;
-        }
-        openedCatalogs.clear();
-        return closed;
+        return openedCatalogs.closeAll();
+    }
+
+    /**
+     * Sets how many catalogs are kept open at most, and their maximum total
+     * size. The least recently used catalogs are closed beyond that, and
+     * opened again when they are needed
+     *
+     * @param maxCatalogs  maximum number of catalogs kept open
+     * @param maxTotalSize maximum total size in bytes of the catalogs kept open
+     */
+    public void setOpenedCatalogsLimits(int maxCatalogs, long maxTotalSize) {
+        openedCatalogs.setLimits(maxCatalogs, maxTotalSize);
+    }
+
+    public CatalogRegistry getCatalogRegistry() {
+        return openedCatalogs;
     }
 
     private CatalogReference findBestFit(CatalogReference[] catalogReferences,
@@ -106,6 +128,7 @@ public class Repository {
         if (manifest == null)
             throw new ManifestException();
         fqrn = manifest.getRepositoryName();
+        fetcher.setRawFileTTL(manifest.getTTL());
     }
 
     protected void tryToGetLastReplicationTimestamp() {
@@ -228,9 +251,17 @@ public class Repository {
      * @return the object, if exists in the repository
      */
     public File retrieveObject(String objectHash, String hash_suffix) throws FileNotFoundInRepositoryException {
-        String path = "data" + File.separator + objectHash.substring(0, 2) + File.separator +
+        return fetcher.retrieveFile(makeObjectName(objectHash, hash_suffix));
+    }
+
+    /**
+     * @param objectHash  hash of the object
+     * @param hash_suffix suffix of the object
+     * @return the name of the object in the content addressable storage
+     */
+    public static String makeObjectName(String objectHash, String hash_suffix) {
+        return "data" + File.separator + objectHash.substring(0, 2) + File.separator +
                 objectHash.substring(2, objectHash.length()) + hash_suffix;
-        return fetcher.retrieveFile(path);
     }
 
     public File retrieveObject(String objectHash) throws FileNotFoundInRepositoryException {
@@ -238,44 +269,245 @@ public class Repository {
     }
 
     /**
-     * Download and open a catalog from the repository
+     * Download and open a catalog from the repository. The catalog is not
+     * protected: it can be closed as soon as more catalogs are open than the
+     * registry keeps, so code that keeps using it must use acquireCatalog
      *
      * @param catalogHash hash of the catalog to download
      * @return the catalog that corresponds to the hash
      */
     public Catalog retrieveCatalog(String catalogHash) {
-        if (openedCatalogs.containsKey(catalogHash))
-            return openedCatalogs.get(catalogHash);
-        return retrieveAndOpenCatalog(catalogHash);
+        Catalog catalog = openedCatalogs.get(catalogHash);
+        if (catalog != null)
+            return catalog;
+        return retrieveAndOpenCatalog(catalogHash, false);
     }
 
-    public void retrieveCatalogTree(Catalog catalog) {
-        for (CatalogReference ref : catalog.listNested()) {
-            Catalog newCatalog = ref.retrieveFrom(this);
-            retrieveCatalogTree(newCatalog);
-        }
+    /**
+     * Retrieves a catalog and protects it from being closed, when too many
+     * catalogs are open, until it is given back with releaseCatalog
+     *
+     * @param catalogHash hash of the catalog to download
+     * @return the catalog that corresponds to the hash, or null if it could
+     * not be opened
+     */
+    public Catalog acquireCatalog(String catalogHash) {
+        Catalog catalog = openedCatalogs.acquire(catalogHash);
+        if (catalog != null)
+            return catalog;
+        return retrieveAndOpenCatalog(catalogHash, true);
+    }
+
+    /**
+     * Gives back a catalog obtained with acquireCatalog
+     *
+     * @param catalog catalog that is no longer in use
+     */
+    public void releaseCatalog(Catalog catalog) {
+        if (catalog != null)
+            openedCatalogs.release(catalog);
+    }
+
+    /**
+     * Retrieves all the catalogs below a catalog, several at once
+     *
+     * @param catalog catalog whose nested catalogs are retrieved
+     * @return true if all the catalogs were retrieved
+     */
+    public boolean retrieveCatalogTree(Catalog catalog) {
+        return retrieveCatalogTree(catalog, CatalogTreeRetriever.DEFAULT_CONCURRENCY, null);
+    }
+
+    /**
+     * Retrieves all the catalogs below a catalog, several at once, the
+     * largest ones first
+     *
+     * @param catalog     catalog whose nested catalogs are retrieved
+     * @param concurrency maximum number of catalogs retrieved at once
+     * @param listener    listener notified of the progress, or null
+     * @return true if all the catalogs were retrieved
+     */
+    public boolean retrieveCatalogTree(Catalog catalog, int concurrency,
+                                       CatalogTreeListener listener) {
+        return new CatalogTreeRetriever(this, concurrency, listener).retrieve(catalog);
     }
 
     protected Catalog retrieveAndOpenCatalog(String catalogHash) {
-        File catalogFile;
+        return retrieveAndOpenCatalog(catalogHash, false);
+    }
+
+    /**
+     * Downloads and opens a catalog that is not open. If another thread is
+     * already doing it, waits for that catalog instead of opening it again
+     *
+     * @param catalogHash hash of the catalog to download
+     * @param acquire     true to acquire the catalog, as acquireCatalog does
+     * @return the catalog that corresponds to the hash, or null if it could
+     * not be opened
+     */
+    protected Catalog retrieveAndOpenCatalog(final String catalogHash, final boolean acquire) {
+        FutureTask<Catalog> task = new FutureTask<>(new Callable<Catalog>() {
+            public Catalog call() {
+                // it may have been opened since the caller looked it up
+                Catalog catalog = acquire ? openedCatalogs.acquire(catalogHash) :
+                        openedCatalogs.get(catalogHash);
+                if (catalog != null)
+                    return catalog;
+                return openCatalog(catalogHash, acquire);
+            }
+        });
+        FutureTask<Catalog> loading = loadingCatalogs.putIfAbsent(catalogHash, task);
+        if (loading == null) {
+            try {
+                task.run();
+                return task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                loadingCatalogs.remove(catalogHash, task);
+            }
+        }
+        Catalog catalog;
+        try {
+            catalog = loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (catalog == null || !acquire)
+            return catalog;
+        Catalog acquired = openedCatalogs.acquire(catalogHash);
+        // it could have been closed already if too many catalogs are open
+        return acquired != null ? acquired : retrieveAndOpenCatalog(catalogHash, true);
+    }
+
+    private Catalog openCatalog(String catalogHash, boolean acquire) {
+        String catalogName = makeObjectName(catalogHash, Catalog.CATALOG_ROOT_PREFIX);
+        // keep the catalog file in the cache for as long as it is opened
+        fetcher.getCache().pin(catalogName);
         try {
-            catalogFile = retrieveObject(catalogHash, Catalog.CATALOG_ROOT_PREFIX);
-            Catalog newCatalog = new Catalog(catalogFile, catalogHash);
-            openedCatalogs.put(catalogHash, newCatalog);
-            return newCatalog;
+            File catalogFile = fetcher.retrieveFile(catalogName);
+            Catalog newCatalog = new Catalog(catalogFile, catalogHash, catalogConnections,
+                    databaseProfile);
+            return openedCatalogs.register(newCatalog, acquire);
         } catch (FileNotFoundInRepositoryException | CatalogInitializationException | SQLException e) {
+            fetcher.getCache().unpin(catalogName);
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Writes the lookup index of a catalog into the cache, next to the
+     * catalog, and starts using it. The index is kept in the cache like any
+     * other object and is picked up whenever the catalog is opened again
+     *
+     * @param catalog catalog of this repository
+     * @return true if the catalog is now looked up through its index
+     */
+    public boolean indexCatalog(Catalog catalog) {
+        if (catalog.hasIndex())
+            return true;
+        String indexName = makeObjectName(catalog.getHash(),
+                Catalog.CATALOG_ROOT_PREFIX) + CatalogIndex.INDEX_SUFFIX;
+        Cache cache = fetcher.getCache();
+        File temporaryFile = null;
+        try {
+            temporaryFile = cache.addTemporary(indexName);
+            catalog.writeIndex(temporaryFile);
+            if (!cache.commit(temporaryFile, indexName))
+                return false;
+        } catch (IOException | SQLException e) {
+            if (temporaryFile != null)
+                temporaryFile.delete();
+            e.printStackTrace();
+            return false;
+        }
+        return catalog.loadIndex();
+    }
+
+    /**
+     * Sets how many connections the catalogs opened from now on keep, so
+     * that as many threads can look up entries in the same catalog at once
+     *
+     * @param catalogConnections number of connections per catalog
+     */
+    public void setCatalogConnections(int catalogConnections) {
+        this.catalogConnections = catalogConnections;
+    }
+
+    public int getCatalogConnections() {
+        return catalogConnections;
+    }
+
+    /**
+     * Sets the SQLite settings of the catalogs and histories opened from now on
+     *
+     * @param databaseProfile settings of the databases
+     */
+    public void setDatabaseProfile(DatabaseProfile databaseProfile) {
+        this.databaseProfile = databaseProfile;
+    }
+
+    public DatabaseProfile getDatabaseProfile() {
+        return databaseProfile;
+    }
+
+    /**
+     * Enables the background download of the files of the directories being
+     * listed, which are likely to be opened next
+     *
+     * @param concurrency maximum number of files prefetched at once
+     * @param byteBudget  maximum number of bytes of the files waiting to be
+     *                    prefetched or being prefetched
+     */
+    public void enablePrefetch(int concurrency, long byteBudget) {
+        disablePrefetch();
+        prefetcher = new Prefetcher(fetcher, concurrency, byteBudget);
+        fetcher.setPrefetcher(prefetcher);
+    }
+
+    public void disablePrefetch() {
+        if (prefetcher != null) {
+            fetcher.setPrefetcher(null);
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Queues the regular files among the given entries for background
+     * download, if prefetching is enabled. Chunked files are left out since
+     * they are usually read by ranges
+     *
+     * @param entries entries of a directory
+     */
+    public void prefetchFiles(List<DirectoryEntry> entries) {
+        Prefetcher currentPrefetcher = prefetcher;
+        if (currentPrefetcher == null)
+            return;
+        for (DirectoryEntry entry : entries) {
+            if (entry.isFile() && !entry.isChunkedFile() && entry.getContentHash() != null)
+                currentPrefetcher.prefetch(makeObjectName(entry.contentHashString(), ""),
+                        entry.getSize());
+        }
+    }
+
     public History retrieveHistory() throws HistoryNotFoundException {
         if (!hasHistory()) {
             throw new HistoryNotFoundException();
         }
         try {
             File historyDB = retrieveObject(manifest.getHistoryDatabase(), "H");
-            return new History(historyDB);
+            return new History(historyDB, databaseProfile);
         } catch (FileNotFoundInRepositoryException | SQLException e) {
             throw new HistoryNotFoundException();
         }
@@ -307,7 +539,10 @@ public class Repository {
         return getRevision(manifest.getRevision());
     }
 
+    /**
+     * @return a snapshot of the open catalogs by hash
+     */
     public Map<String, Catalog> getOpenedCatalogs() {
-        return openedCatalogs;
+        return openedCatalogs.snapshot();
     }
 }
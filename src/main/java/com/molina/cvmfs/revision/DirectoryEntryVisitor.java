@@ -0,0 +1,17 @@
+package com.molina.cvmfs.revision;
+
+import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Receives the entries of a revision during a parallel traversal. It
+ *         is called from several threads at once, so it must be thread-safe.
+ */
+public interface DirectoryEntryVisitor {
+
+    /**
+     * @param entry entry of the revision along with its path
+     */
+    void visit(DirectoryEntryWrapper entry);
+}
@@ -0,0 +1,119 @@
+package com.molina.cvmfs.revision;
+
+import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.catalog.CatalogReference;
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
+import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.repository.Repository;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Trie of the nested catalog mountpoints of a revision, by path
+ *         component, that maps every mountpoint to the hash of its catalog.
+ *         It is filled as paths are resolved: the nested catalogs of a catalog
+ *         are only read the first time a path goes through it, and from then
+ *         on finding the catalog of a path is a walk down the trie. Several
+ *         threads can resolve paths at once. A catalog whose nested catalogs
+ *         cannot be read is not marked as explored, so it is read again by
+ *         the next path that goes through it.
+ */
+class MountpointTrie {
+
+    private final Repository repository;
+    private final Node root;
+
+    private static class Node {
+        final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+        volatile String catalogHash;
+        volatile boolean explored;
+    }
+
+    /**
+     * @param repository      repository the catalogs are read from
+     * @param rootCatalogHash hash of the root catalog of the revision
+     */
+    MountpointTrie(Repository repository, String rootCatalogHash) {
+        this.repository = repository;
+        this.root = new Node();
+        this.root.catalogHash = rootCatalogHash;
+    }
+
+    /**
+     * Finds the catalog a path belongs to, which is the one mounted at the
+     * longest prefix of the path
+     *
+     * @param path path in the revision
+     * @return the hash of the catalog that contains the path
+     * @throws CatalogReadException if a catalog on the way to the path cannot
+     *                              be opened or its nested catalogs read
+     */
+    String resolve(String path) {
+        String realPath = Common.canonicalizePath(path);
+        Node node = root;
+        Node best = root;
+        explore(root);
+        int start = 0;
+        int length = realPath.length();
+        while (start < length) {
+            int end = realPath.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                node = node.children.get(realPath.substring(start, end));
+                if (node == null)
+                    break;
+                if (node.catalogHash != null) {
+                    best = node;
+                    explore(node);
+                }
+            }
+            start = end + 1;
+        }
+        return best.catalogHash;
+    }
+
+    /**
+     * Adds the mountpoints of the nested catalogs of a catalog, the first
+     * time it is walked through
+     */
+    private void explore(Node node) {
+        if (node.explored)
+            return;
+        synchronized (node) {
+            if (node.explored)
+                return;
+            Catalog catalog = repository.acquireCatalog(node.catalogHash);
+            if (catalog == null)
+                throw new CatalogReadException("Cannot open catalog " +
+                        node.catalogHash, null);
+            try {
+                for (CatalogReference reference : catalog.listNested())
+                    add(reference.getRootPath(), reference.getCatalogHash());
+            } finally {
+                repository.releaseCatalog(catalog);
+            }
+            node.explored = true;
+        }
+    }
+
+    private void add(String mountpoint, String catalogHash) {
+        Node node = root;
+        for (String component : Common.canonicalizePath(mountpoint).split("/")) {
+            if (component.isEmpty())
+                continue;
+            Node child = node.children.get(component);
+            if (child == null) {
+                Node newChild = new Node();
+                child = node.children.putIfAbsent(component, newChild);
+                if (child == null)
+                    child = newChild;
+            }
+            node = child;
+        }
+        node.catalogHash = catalogHash;
+    }
+}
@@ -0,0 +1,214 @@
+package com.molina.cvmfs.revision;
+
+import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.catalog.CatalogIterator;
+import com.molina.cvmfs.catalog.CatalogReference;
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
+import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
+import com.molina.cvmfs.repository.Repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Walks all the entries of a revision in parallel, with every catalog
+ *         walked by its own task of a ForkJoinPool. The nested catalogs of a
+ *         catalog are forked before it is walked, so they are downloaded and
+ *         opened while their parent is being read. The number of catalogs open
+ *         at once, which bounds the memory used, is limited as well as the
+ *         number of threads. The entries are given to a visitor in no
+ *         particular order, except that a directory always comes before its
+ *         contents within a catalog. Mountpoints are given once, as the root
+ *         entry of their nested catalog.
+ *         <p/>
+ *         The first failure, of the visitor or of a catalog or directory that
+ *         cannot be read, stops every task, and every task has finished before it is
+ *         thrown back, so the visitor is never called once run has returned.
+ */
+public class ParallelTraversal {
+
+    public static final int DEFAULT_MAX_OPEN_CATALOGS = 16;
+
+    protected Revision revision;
+    protected int parallelism;
+    protected int maxOpenCatalogs;
+
+    public ParallelTraversal(Revision revision) {
+        this(revision, Runtime.getRuntime().availableProcessors(),
+                DEFAULT_MAX_OPEN_CATALOGS);
+    }
+
+    /**
+     * @param revision        revision to walk
+     * @param parallelism     number of threads walking catalogs
+     * @param maxOpenCatalogs maximum number of catalogs being walked at once
+     */
+    public ParallelTraversal(Revision revision, int parallelism, int maxOpenCatalogs) {
+        this.revision = revision;
+        this.parallelism = parallelism;
+        this.maxOpenCatalogs = maxOpenCatalogs;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getMaxOpenCatalogs() {
+        return maxOpenCatalogs;
+    }
+
+    /**
+     * Gives every entry of the revision to a visitor, returning once all of
+     * them have been visited. An exception thrown by the visitor stops the
+     * traversal and is thrown back once no task is running any more
+     *
+     * @param visitor thread-safe receiver of the entries
+     * @return number of entries visited
+     * @throws CatalogReadException if a catalog or directory of the revision
+     *                              cannot be read, so that its entries are not
+     *                              visited
+     */
+    public long run(DirectoryEntryVisitor visitor) {
+        Traversal traversal = new Traversal(revision.getRepository(), visitor,
+                new Semaphore(maxOpenCatalogs));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(traversal.new CatalogTask(revision.getRootHash()));
+        } finally {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Throwable failure = traversal.failure.get();
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new RuntimeException(failure);
+        return traversal.visited.get();
+    }
+
+    private static class Traversal {
+        final Repository repository;
+        final DirectoryEntryVisitor visitor;
+        final Semaphore openCatalogs;
+        final AtomicLong visited = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Traversal(Repository repository, DirectoryEntryVisitor visitor,
+                  Semaphore openCatalogs) {
+            this.repository = repository;
+            this.visitor = visitor;
+            this.openCatalogs = openCatalogs;
+        }
+
+        /**
+         * Records the first failure, which makes every task stop
+         */
+        void fail(Throwable cause) {
+            failure.compareAndSet(null, cause);
+        }
+
+        boolean failed() {
+            return failure.get() != null;
+        }
+
+        /**
+         * Waits for a catalog to be allowed to open, letting the pool start
+         * another thread meanwhile so that parallelism is kept
+         */
+        void acquireOpenCatalog() throws InterruptedException {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean acquired;
+
+                public boolean block() throws InterruptedException {
+                    if (!acquired) {
+                        openCatalogs.acquire();
+                        acquired = true;
+                    }
+                    return true;
+                }
+
+                public boolean isReleasable() {
+                    return acquired || (acquired = openCatalogs.tryAcquire());
+                }
+            });
+        }
+
+        class CatalogTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final String catalogHash;
+
+            CatalogTask(String catalogHash) {
+                this.catalogHash = catalogHash;
+            }
+
+            @Override
+            protected void compute() {
+                if (failed())
+                    return;
+                try {
+                    acquireOpenCatalog();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(e);
+                    return;
+                }
+                List<CatalogTask> nestedTasks = new ArrayList<>();
+                try {
+                    walk(nestedTasks);
+                } catch (RuntimeException | Error e) {
+                    fail(e);
+                } finally {
+                    // forked tasks see the failure and stop, but they are
+                    // waited for so that none of them is left running
+                    for (CatalogTask nestedTask : nestedTasks)
+                        nestedTask.quietlyJoin();
+                }
+            }
+
+            private void walk(List<CatalogTask> nestedTasks) {
+                try {
+                    Catalog catalog = repository.acquireCatalog(catalogHash);
+                    if (catalog == null) {
+                        fail(new CatalogReadException("Cannot open catalog " +
+                                catalogHash, null));
+                        return;
+                    }
+                    try {
+                        for (CatalogReference reference : catalog.listNested()) {
+                            CatalogTask nestedTask = new CatalogTask(reference.getCatalogHash());
+                            nestedTask.fork();
+                            nestedTasks.add(nestedTask);
+                        }
+                        CatalogIterator iterator = new CatalogIterator(catalog);
+                        while (!failed() && iterator.hasNext()) {
+                            DirectoryEntryWrapper entry = iterator.next();
+                            if (entry.getDirectoryEntry().isNestedCatalogMountpoint())
+                                continue;
+                            visitor.visit(entry);
+                            visited.incrementAndGet();
+                        }
+                    } finally {
+                        repository.releaseCatalog(catalog);
+                    }
+                } finally {
+                    openCatalogs.release();
+                }
+            }
+        }
+    }
+}
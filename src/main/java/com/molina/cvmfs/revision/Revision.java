@@ -2,16 +2,20 @@ package com.molina.cvmfs.revision;
 
 import com.molina.cvmfs.catalog.Catalog;
 import com.molina.cvmfs.catalog.CatalogIterator;
-import com.molina.cvmfs.catalog.CatalogReference;
+import com.molina.cvmfs.catalog.DirectoryListing;
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
 import com.molina.cvmfs.directoryentry.DirectoryEntry;
 import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
+import com.molina.cvmfs.directoryentry.exception.DirectoryEntryInvalidObject;
 import com.molina.cvmfs.history.RevisionTag;
 import com.molina.cvmfs.repository.Repository;
 import com.molina.cvmfs.repository.exception.FileNotFoundInRepositoryException;
 
 import java.io.File;
-import java.util.Iterator;
-import java.util.List;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.*;
 
 /**
  * Wrapper around a CVMFS Repository revision.
@@ -22,14 +26,16 @@ import java.util.List;
  *
  * @author Jose Molina Colmenero
  */
-public class Revision {
+public class Revision implements Iterable<DirectoryEntryWrapper> {
 
     private Repository repository;
     private RevisionTag tag;
+    private MountpointTrie mountpoints;
 
     public Revision(Repository repository, RevisionTag revisionTag) {
         this.repository = repository;
         this.tag = revisionTag;
+        this.mountpoints = new MountpointTrie(repository, revisionTag.getHash());
     }
 
     public Repository getRepository() {
@@ -56,12 +62,19 @@ public class Revision {
         return tag.getHash();
     }
 
+    /**
+     * @return the root catalog of this revision. Like retrieveCatalog, it is
+     * not protected from being closed when too many catalogs are open
+     */
     public Catalog retrieveRootCatalog() {
         return retrieveCatalog(getRootHash());
     }
 
     /**
-     * Retrieve and open a catalog that belongs to this revision
+     * Retrieve and open a catalog that belongs to this revision. The catalog
+     * is not acquired, so it can be closed at any time once more catalogs
+     * are open than the repository keeps; use Repository.acquireCatalog to
+     * keep using it for long
      *
      * @param catalogHash hash of the catalog
      * @return the catalog with the given hash
@@ -70,27 +83,43 @@ public class Revision {
         return repository.retrieveCatalog(catalogHash);
     }
 
+    /**
+     * @return an iterator over the entries of the root catalog, which is not
+     * acquired and can be closed while the iterator is in use if too many
+     * catalogs are open. RevisionIterator protects the catalogs it walks
+     */
     public CatalogIterator catalogs() {
         return new CatalogIterator(retrieveRootCatalog());
     }
 
     /**
-     * Recursively walk down the Catalogs and find the best fit for a path
+     * Find the best fit catalog for a path. The mountpoints of the nested
+     * catalogs are remembered, so catalogs are only walked down the first
+     * time a path goes through them
      *
      * @param needlePath path where the catalog can be found
      * @return the catalog stored in the given path for this revision, or null
-     * if not such a catalog is present
+     * if not such a catalog is present. It is not acquired, see
+     * acquireCatalogForPath
+     * @throws CatalogReadException if a catalog on the way to the path cannot
+     *                              be opened or its nested catalogs read
      */
     public Catalog retrieveCatalogForPath(String needlePath) {
-        Catalog catalog = retrieveRootCatalog();
-        while (true) {
-            CatalogReference newNestedReference = catalog.findNestedForPath(needlePath);
-            if (newNestedReference == null) {
-                break;
-            }
-            catalog = retrieveCatalog(newNestedReference.getCatalogHash());
-        }
-        return catalog;
+        return retrieveCatalog(mountpoints.resolve(needlePath));
+    }
+
+    /**
+     * Like retrieveCatalogForPath, but the catalog is protected from being
+     * closed until it is given back with Repository.releaseCatalog
+     *
+     * @param needlePath path where the catalog can be found
+     * @return the acquired catalog for the given path, or null if a catalog
+     * could not be opened
+     * @throws CatalogReadException if a catalog on the way to the path cannot
+     *                              be opened or its nested catalogs read
+     */
+    public Catalog acquireCatalogForPath(String needlePath) {
+        return repository.acquireCatalog(mountpoints.resolve(needlePath));
     }
 
     /**
@@ -99,15 +128,65 @@ public class Revision {
      * @param path path to search for
      * @return the DirectoryEntry that corresponds to the given path if
      * it is found in the already loaded catalogs, or None otherwise
+     * @throws CatalogReadException if a catalog on the way to the path cannot
+     *                              be opened or its nested catalogs read
      */
     public DirectoryEntry lookup(String path) {
         if (path.equals("/"))
             path = "";
-        Catalog bestFit = retrieveCatalogForPath(path);
-        return bestFit.findDirectoryEntry(path);
+        Catalog bestFit = acquireCatalogForPath(path);
+        if (bestFit == null)
+            return null;
+        try {
+            return bestFit.findDirectoryEntry(path);
+        } finally {
+            repository.releaseCatalog(bestFit);
+        }
     }
 
 
+    /**
+     * Lookups many paths at once. The paths are grouped by the catalog they
+     * belong to, and every catalog reads its entries with batched queries
+     *
+     * @param paths paths to search for
+     * @return a map from every given path, in the order given, to its
+     * DirectoryEntry, or to null if the path does not exist
+     * @throws CatalogReadException if a catalog that some of the paths belong
+     *                              to cannot be opened or read, so that the
+     *                              paths are not reported as missing
+     */
+    public Map<String, DirectoryEntry> lookupAll(Collection<String> paths) {
+        Map<String, DirectoryEntry> result = new LinkedHashMap<>();
+        Map<String, List<String>> pathsByCatalog = new HashMap<>();
+        for (String path : paths) {
+            result.put(path, null);
+            String catalogHash = mountpoints.resolve(path);
+            List<String> catalogPaths = pathsByCatalog.get(catalogHash);
+            if (catalogPaths == null) {
+                catalogPaths = new ArrayList<>();
+                pathsByCatalog.put(catalogHash, catalogPaths);
+            }
+            catalogPaths.add(path);
+        }
+        for (Map.Entry<String, List<String>> group : pathsByCatalog.entrySet()) {
+            Catalog catalog = repository.acquireCatalog(group.getKey());
+            if (catalog == null)
+                throw new CatalogReadException("Cannot open catalog " + group.getKey(), null);
+            try {
+                List<String> catalogPaths = new ArrayList<>(group.getValue().size());
+                for (String path : group.getValue())
+                    catalogPaths.add(path.equals("/") ? "" : path);
+                Map<String, DirectoryEntry> found = catalog.findDirectoryEntries(catalogPaths);
+                for (String path : group.getValue())
+                    result.put(path, found.get(path.equals("/") ? "" : path));
+            } finally {
+                repository.releaseCatalog(catalog);
+            }
+        }
+        return result;
+    }
+
     public File getFile(String path) {
         DirectoryEntry result = lookup(path);
         if (result != null && result.isFile()) {
@@ -121,23 +200,149 @@ public class Revision {
     }
 
     /**
-     * List all the entries in a directory
+     * Opens a file for random access. Chunked files only retrieve the
+     * chunks that cover the ranges being read
+     *
+     * @param path path of the file
+     * @return a read-only channel over the content of the file, or null if
+     * the path is not a regular file
+     */
+    public SeekableByteChannel openFile(String path) {
+        DirectoryEntry result = lookup(path);
+        if (result != null && result.isFile()) {
+            try {
+                return result.openChannel(repository);
+            } catch (DirectoryEntryInvalidObject e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a range of a file, retrieving only the chunks that cover it
+     *
+     * @param path   path of the file
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read
+     * @return the bytes read, fewer than length if the end of the file is
+     * reached, or null if the path is not a regular file
+     */
+    public byte[] read(String path, long offset, int length) throws IOException {
+        SeekableByteChannel channel = openFile(path);
+        if (channel == null)
+            return null;
+        try {
+            long available = Math.max(0, channel.size() - offset);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, available));
+            channel.position(offset);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // a read stops at the end of each chunk
+            }
+            return buffer.array();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * List all the entries in a directory. If the repository has prefetching
+     * enabled, the files of the directory start being downloaded in the
+     * background
      *
      * @param path path of the directory
      * @return a list of DirectoryEntry representing all the entries for the
      * given directory, or None if such a directory does not exist
+     * @throws CatalogReadException if a catalog on the way to the path cannot
+     *                              be opened or its nested catalogs read
      */
     public List<DirectoryEntry> listDirectory(String path) {
-        DirectoryEntry dirent = lookup(path);
-        if (dirent != null && dirent.isDirectory()) {
-            Catalog bestFit = retrieveCatalogForPath(path);
-            return bestFit.listDirectory(path);
+        Catalog bestFit = acquireCatalogForPath(path);
+        if (bestFit == null)
+            return null;
+        try {
+            DirectoryEntry dirent = bestFit.findDirectoryEntry(path.equals("/") ? "" : path);
+            if (dirent == null || !dirent.isDirectory())
+                return null;
+            List<DirectoryEntry> entries = bestFit.listDirectory(path);
+            if (entries != null)
+                repository.prefetchFiles(entries);
+            return entries;
+        } finally {
+            repository.releaseCatalog(bestFit);
         }
-        return null;
     }
 
+    /**
+     * Opens a cursor over the entries of a directory that keeps at most one
+     * page of entries in memory, for directories too big to be listed at once.
+     * Its catalog is acquired until the cursor is closed or exhausted
+     *
+     * @param path      path of the directory
+     * @param afterName name after which the listing starts, or null to start
+     *                  from the first entry
+     * @param pageSize  maximum number of entries kept in memory, 0 or less to
+     *                  read the whole directory at once
+     * @return a cursor over the entries of the directory in name order, or
+     * null if such a directory does not exist
+     * @throws CatalogReadException if a catalog on the way to the path cannot
+     *                              be opened or its nested catalogs read
+     */
+    public DirectoryListing openListing(String path, String afterName, int pageSize) {
+        Catalog bestFit = acquireCatalogForPath(path);
+        if (bestFit == null)
+            return null;
+        DirectoryEntry dirent = bestFit.findDirectoryEntry(path.equals("/") ? "" : path);
+        if (dirent == null || !dirent.isDirectory()) {
+            repository.releaseCatalog(bestFit);
+            return null;
+        }
+        DirectoryListing listing = bestFit.openListing(path, afterName, pageSize);
+        listing.releaseOnClose(repository);
+        return listing;
+    }
+
+    public DirectoryListing openListing(String path) {
+        return openListing(path, null, Catalog.DEFAULT_LISTING_PAGE_SIZE);
+    }
+
+
+    /**
+     * Gives every entry of this revision to a visitor, walking the catalogs
+     * in parallel with one thread per processor. A catalog or directory that
+     * cannot be read makes it throw a CatalogReadException
+     *
+     * @param visitor thread-safe receiver of the entries
+     * @return number of entries visited
+     * @see ParallelTraversal
+     */
+    public long traverse(DirectoryEntryVisitor visitor) {
+        return new ParallelTraversal(this).run(visitor);
+    }
+
+    /**
+     * Gives every entry of this revision to a visitor, walking the catalogs
+     * in parallel
+     *
+     * @param visitor         thread-safe receiver of the entries
+     * @param parallelism     number of threads walking catalogs
+     * @param maxOpenCatalogs maximum number of catalogs being walked at once
+     * @return number of entries visited
+     */
+    public long traverse(DirectoryEntryVisitor visitor, int parallelism,
+                         int maxOpenCatalogs) {
+        return new ParallelTraversal(this, parallelism, maxOpenCatalogs).run(visitor);
+    }
 
     public Iterator<DirectoryEntryWrapper> iterator() {
         return new RevisionIterator(this);
     }
+
+    /**
+     * @return a splitter over all the entries of this revision, that can be
+     * split to walk the revision from several threads
+     */
+    public RevisionSplitter splitter() {
+        return new RevisionSplitter(this);
+    }
 }
@@ -3,18 +3,26 @@ package com.molina.cvmfs.revision;
 import com.molina.cvmfs.catalog.Catalog;
 import com.molina.cvmfs.catalog.CatalogIterator;
 import com.molina.cvmfs.catalog.CatalogReference;
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
 import com.molina.cvmfs.directoryentry.DirectoryEntry;
 import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
 import com.molina.cvmfs.repository.exception.NestedCatalogNotFoundException;
 
+import java.io.Closeable;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 /**
- * Iterates through all directory entries in a whole Repository
+ * Iterates through all directory entries in a whole Repository. The catalogs
+ * being iterated are acquired from the repository, so that they are not
+ * closed meanwhile, and released once they have been walked or the iterator
+ * is closed. A catalog that cannot be opened makes it throw a
+ * CatalogReadException, so that a truncated iteration is not mistaken for a
+ * complete one.
  */
-public class RevisionIterator implements Iterator<DirectoryEntryWrapper> {
+public class RevisionIterator implements Iterator<DirectoryEntryWrapper>, Closeable {
 
     private Revision revision;
     private Deque<CatalogIterator> catalogStack;
@@ -22,12 +30,11 @@ public class RevisionIterator implements Iterator<DirectoryEntryWrapper> {
     public RevisionIterator(Revision revision, String catalogHash) {
         this.revision = revision;
         this.catalogStack = new LinkedList<>();
-        Catalog rootCatalog;
-        if (catalogHash == null || catalogHash.isEmpty()) {
-            rootCatalog = revision.retrieveRootCatalog();
-        } else {
-            rootCatalog = revision.retrieveCatalog(catalogHash);
-        }
+        if (catalogHash == null || catalogHash.isEmpty())
+            catalogHash = revision.getRootHash();
+        Catalog rootCatalog = revision.getRepository().acquireCatalog(catalogHash);
+        if (rootCatalog == null)
+            throw new CatalogReadException("Cannot open catalog " + catalogHash, null);
         pushCatalog(rootCatalog);
     }
 
@@ -36,21 +43,18 @@ public class RevisionIterator implements Iterator<DirectoryEntryWrapper> {
     }
 
     public DirectoryEntryWrapper next() {
-        DirectoryEntryWrapper result = getNextDirent();
+        if (!hasNext())
+            throw new NoSuchElementException("No more elements");
+        DirectoryEntryWrapper result = getCurrentCatalogIterator().next();
         DirectoryEntry dirent = result.getDirectoryEntry();
         if (dirent.isNestedCatalogMountpoint()) {
             try {
-                String path = result.getPath();
-                Catalog mountedCatalog = revision.retrieveCatalog(path);
-                if (mountedCatalog == null) {
-                    fetchAndPushCatalog(path);
-                } else {
-                    pushCatalog(mountedCatalog);
-                }
+                // the root entry of the nested catalog stands for the mountpoint
+                fetchAndPushCatalog(result.getPath());
                 return next();
             } catch (NestedCatalogNotFoundException e) {
-                e.printStackTrace();
-                return null;
+                throw new CatalogReadException("Cannot open the nested catalog at " +
+                        result.getPath(), e);
             }
         }
         return result;
@@ -60,41 +64,47 @@ public class RevisionIterator implements Iterator<DirectoryEntryWrapper> {
         // do nothing
     }
 
-    private DirectoryEntryWrapper getNextDirent() {
-        CatalogIterator currentCatalog = getCurrentCatalogIterator();
-        DirectoryEntryWrapper wrapper = currentCatalog.next();
-        while (currentCatalog != null && !currentCatalog.hasNext()) {
-            popCatalog();
-            currentCatalog = getCurrentCatalogIterator();
-        }
-        return wrapper;
-    }
-
     private void fetchAndPushCatalog(String catalogMountpoint) throws NestedCatalogNotFoundException {
         Catalog currentCatalog = getCurrentCatalogIterator().getCatalog();
         CatalogReference nestedRef = currentCatalog.findNestedForPath(catalogMountpoint);
         if (nestedRef == null) {
             throw new NestedCatalogNotFoundException(catalogMountpoint);
         }
-        Catalog newCatalog = nestedRef.retrieveFrom(revision.getRepository());
+        Catalog newCatalog = revision.getRepository().acquireCatalog(
+                nestedRef.getCatalogHash());
+        if (newCatalog == null) {
+            throw new NestedCatalogNotFoundException(catalogMountpoint);
+        }
         pushCatalog(newCatalog);
     }
 
     public boolean hasNext() {
-        return !catalogStack.isEmpty();
+        CatalogIterator currentCatalog = getCurrentCatalogIterator();
+        while (currentCatalog != null && !currentCatalog.hasNext()) {
+            popCatalog();
+            currentCatalog = getCurrentCatalogIterator();
+        }
+        return currentCatalog != null;
+    }
+
+    /**
+     * Releases the catalogs that were still being iterated
+     */
+    public void close() {
+        while (!catalogStack.isEmpty())
+            popCatalog();
     }
 
     private void pushCatalog(Catalog catalog) {
-        catalogStack.addLast(new CatalogIterator(catalog));
+        catalogStack.addFirst(new CatalogIterator(catalog));
     }
 
     private CatalogIterator getCurrentCatalogIterator() {
         return catalogStack.peekFirst();
     }
 
-    private CatalogIterator popCatalog() {
-        return catalogStack.removeFirst();
+    private void popCatalog() {
+        CatalogIterator catalogIterator = catalogStack.removeFirst();
+        revision.getRepository().releaseCatalog(catalogIterator.getCatalog());
     }
-
-
 }
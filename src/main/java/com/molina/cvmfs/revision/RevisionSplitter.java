@@ -0,0 +1,204 @@
+package com.molina.cvmfs.revision;
+
+import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.catalog.CatalogReference;
+import com.molina.cvmfs.catalog.CatalogSplitter;
+import com.molina.cvmfs.catalog.CatalogStatistics;
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
+import com.molina.cvmfs.catalog.exception.CounterNotFound;
+import com.molina.cvmfs.directoryentry.DirectoryEntryWrapper;
+import com.molina.cvmfs.repository.Repository;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * @author Jose Molina Colmenero
+ *         <p/>
+ *         Iterates through all the directory entries of a revision, like
+ *         RevisionIterator, and can hand part of the remaining work to a new
+ *         splitter so that several threads walk the revision at once. It
+ *         splits first at nested catalog boundaries, handing over catalogs
+ *         still to be walked, and then within the catalog being walked through
+ *         its CatalogSplitter. Sizes are estimated from the CatalogStatistics of
+ *         the catalogs: the entries of a catalog are known once it is opened,
+ *         and the ones of its nested catalogs are estimated from its subtree
+ *         counters until they are opened.
+ *         <p/>
+ *         The contract follows java.util.Spliterator, which is not available
+ *         in Java 7. The catalog being walked is acquired from the repository
+ *         until it has been walked or the splitter is closed. A catalog that
+ *         cannot be opened or read makes it throw a CatalogReadException, so
+ *         that a partial walk is not mistaken for a complete one.
+ */
+public class RevisionSplitter implements Iterator<DirectoryEntryWrapper>, Closeable {
+
+    private final Repository repository;
+    private final Deque<PendingCatalog> pendingCatalogs;
+    private CatalogSplitter current;
+
+    private static class PendingCatalog {
+        final String catalogHash;
+        final long estimatedEntries;
+
+        PendingCatalog(String catalogHash, long estimatedEntries) {
+            this.catalogHash = catalogHash;
+            this.estimatedEntries = estimatedEntries;
+        }
+    }
+
+    public RevisionSplitter(Revision revision) {
+        this(revision.getRepository(), new ArrayDeque<PendingCatalog>(), null);
+        pendingCatalogs.add(new PendingCatalog(revision.getRootHash(), -1));
+        // open the root catalog so that the splitter can be split right away
+        openNextCatalog();
+    }
+
+    private RevisionSplitter(Repository repository, Deque<PendingCatalog> pendingCatalogs,
+                             CatalogSplitter current) {
+        this.repository = repository;
+        this.pendingCatalogs = pendingCatalogs;
+        this.current = current;
+    }
+
+    /**
+     * Opens the next pending catalog, queueing its nested catalogs
+     *
+     * @return false if there are no more catalogs
+     * @throws CatalogReadException if the catalog cannot be opened or read
+     */
+    private boolean openNextCatalog() {
+        if (pendingCatalogs.isEmpty())
+            return false;
+        PendingCatalog pending = pendingCatalogs.removeFirst();
+        Catalog catalog = repository.acquireCatalog(pending.catalogHash);
+        if (catalog == null)
+            throw new CatalogReadException("Cannot open catalog " +
+                    pending.catalogHash, null);
+        try {
+            CatalogReference[] nestedCatalogs = catalog.listNested();
+            long nestedEntries = estimateNestedEntries(catalog, nestedCatalogs.length);
+            current = new CatalogSplitter(catalog, true);
+            for (CatalogReference reference : nestedCatalogs)
+                pendingCatalogs.addLast(new PendingCatalog(reference.getCatalogHash(),
+                        nestedEntries));
+        } catch (RuntimeException e) {
+            repository.releaseCatalog(catalog);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * @return the estimated entries of each nested catalog, which share the
+     * entries of the subtree that are not in the catalog itself, or -1 if
+     * the catalog has no statistics
+     */
+    private static long estimateNestedEntries(Catalog catalog, int nestedCatalogs) {
+        CatalogStatistics statistics = catalog.getStatistics();
+        if (statistics == null || nestedCatalogs == 0)
+            return -1;
+        try {
+            long nestedEntries = statistics.numSubtreeEntries() - statistics.numEntries();
+            return Math.max(0, nestedEntries / nestedCatalogs);
+        } catch (CounterNotFound e) {
+            return -1;
+        }
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            repository.releaseCatalog(current.getCatalog());
+            current = null;
+        }
+    }
+
+    public boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+            releaseCurrent();
+            if (!openNextCatalog())
+                return false;
+        }
+        return true;
+    }
+
+    public DirectoryEntryWrapper next() {
+        if (!hasNext())
+            throw new NoSuchElementException("No more elements");
+        return current.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Cannot remove an element");
+    }
+
+    /**
+     * Hands part of the remaining work to a new splitter: half of the nested
+     * catalogs still to be walked if there are any left besides the current
+     * catalog, or else part of the current catalog
+     *
+     * @return a splitter over the work handed over, or null if the remaining
+     * work cannot be split
+     */
+    public RevisionSplitter trySplit() {
+        int pending = pendingCatalogs.size();
+        boolean walkingCatalog = current != null && current.hasNext();
+        if (pending >= 2 || (pending == 1 && walkingCatalog)) {
+            int handed = pending >= 2 ? pending / 2 : 1;
+            Deque<PendingCatalog> split = new ArrayDeque<>(handed);
+            for (int i = 0; i < handed; i++)
+                split.addFirst(pendingCatalogs.removeLast());
+            return new RevisionSplitter(repository, split, null);
+        }
+        if (walkingCatalog) {
+            // both splitters release the catalog once they are done with it,
+            // so it is acquired once more for the new one
+            Catalog catalog = current.getCatalog();
+            Catalog acquired = repository.acquireCatalog(catalog.getHash());
+            if (acquired != catalog) {
+                // the catalog was closed and opened again meanwhile, the
+                // entries waiting to be walked belong to the closed one
+                repository.releaseCatalog(acquired);
+                return null;
+            }
+            CatalogSplitter catalogSplit;
+            try {
+                catalogSplit = current.trySplit();
+            } catch (RuntimeException e) {
+                repository.releaseCatalog(acquired);
+                throw e;
+            }
+            if (catalogSplit != null)
+                return new RevisionSplitter(repository,
+                        new ArrayDeque<PendingCatalog>(), catalogSplit);
+            repository.releaseCatalog(acquired);
+        }
+        return null;
+    }
+
+    /**
+     * @return estimated number of entries left, or Long.MAX_VALUE if some
+     * catalog has no statistics
+     */
+    public long estimateSize() {
+        long size = current == null ? 0 : current.estimateSize();
+        for (PendingCatalog pending : pendingCatalogs) {
+            if (pending.estimatedEntries < 0 || size == Long.MAX_VALUE)
+                return Long.MAX_VALUE;
+            size += pending.estimatedEntries;
+        }
+        return size;
+    }
+
+    /**
+     * Releases the catalog being walked. The splitter returns no more
+     * entries afterwards
+     */
+    public void close() {
+        releaseCurrent();
+        pendingCatalogs.clear();
+    }
+}
@@ -0,0 +1,93 @@
+package com.molina.cvmfs.test;
+
+import com.molina.cvmfs.fetcher.Cache;
+import com.molina.cvmfs.repository.exception.CacheDirectoryNotFound;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class CacheTest {
+
+    private static final String TEST_CACHE_PATH = "/tmp/cvmfs_test_lru_cache";
+
+    private Cache cache;
+
+    @Before
+    public void setUp() throws IOException, CacheDirectoryNotFound {
+        File directory = new File(TEST_CACHE_PATH);
+        FileUtils.deleteDirectory(directory);
+        directory.mkdirs();
+        cache = new Cache(TEST_CACHE_PATH, 300);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(TEST_CACHE_PATH));
+    }
+
+    private void store(String fileName, int size) throws IOException {
+        File temporaryFile = cache.addTemporary(fileName);
+        FileOutputStream fos = new FileOutputStream(temporaryFile);
+        fos.write(new byte[size]);
+        fos.close();
+        Assert.assertTrue(cache.commit(temporaryFile, fileName));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        store("data/00/a", 100);
+        store("data/00/b", 100);
+        store("data/00/c", 100);
+        Assert.assertNotNull(cache.get("data/00/a"));
+        store("data/00/d", 100);
+        Assert.assertEquals(300, cache.getUsage());
+        Assert.assertNull(cache.get("data/00/b"));
+        Assert.assertNotNull(cache.get("data/00/a"));
+        Assert.assertNotNull(cache.get("data/00/c"));
+        Assert.assertNotNull(cache.get("data/00/d"));
+    }
+
+    @Test
+    public void pinnedObjectsAreKept() throws IOException {
+        store("data/00/a", 100);
+        cache.pin("data/00/a");
+        store("data/00/b", 100);
+        store("data/00/c", 100);
+        store("data/00/d", 100);
+        Assert.assertNotNull(cache.get("data/00/a"));
+        Assert.assertNull(cache.get("data/00/b"));
+        cache.evict();
+        Assert.assertNotNull(cache.get("data/00/a"));
+        Assert.assertNull(cache.get("data/00/d"));
+        Assert.assertEquals(100, cache.getUsage());
+        cache.unpin("data/00/a");
+        cache.setQuota(50);
+        Assert.assertNull(cache.get("data/00/a"));
+        Assert.assertEquals(0, cache.getUsage());
+    }
+
+    @Test
+    public void existingObjectsAreAccounted() throws IOException, CacheDirectoryNotFound {
+        store("data/00/a", 100);
+        store("data/01/b", 100);
+        Cache reopened = new Cache(TEST_CACHE_PATH, 300);
+        Assert.assertEquals(200, reopened.getUsage());
+    }
+
+    @Test
+    public void onlyStaleTemporaryFilesAreRemoved() throws IOException, CacheDirectoryNotFound {
+        File inFlight = cache.addTemporary("data/00/a");
+        File abandoned = cache.addTemporary("data/00/b");
+        Assert.assertTrue(abandoned.setLastModified(
+                System.currentTimeMillis() - Cache.STALE_TEMPORARY_AGE - 1000));
+        new Cache(TEST_CACHE_PATH, 300);
+        Assert.assertTrue(inFlight.isFile());
+        Assert.assertFalse(abandoned.exists());
+    }
+}
@@ -0,0 +1,122 @@
+package com.molina.cvmfs.test;
+
+import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.catalog.CatalogReference;
+import com.molina.cvmfs.repository.CatalogTreeListener;
+import com.molina.cvmfs.repository.CatalogTreeRetriever;
+import com.molina.cvmfs.repository.Repository;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.mockito.Mockito.*;
+
+public class CatalogTreeRetrieverTest {
+
+    private Repository repository;
+    private List<String> retrieved;
+    private List<String> failed;
+    private List<Long> progressBytes;
+    private CatalogTreeListener listener;
+
+    @Before
+    public void setUp() {
+        repository = mock(Repository.class);
+        retrieved = Collections.synchronizedList(new ArrayList<String>());
+        failed = Collections.synchronizedList(new ArrayList<String>());
+        progressBytes = Collections.synchronizedList(new ArrayList<Long>());
+        listener = new CatalogTreeListener() {
+            public void catalogRetrieved(Catalog catalog, int retrievedCatalogs,
+                                         long retrievedBytes) {
+                retrieved.add(catalog.getHash());
+                progressBytes.add(retrievedBytes);
+            }
+
+            public void catalogFailed(String catalogHash) {
+                failed.add(catalogHash);
+            }
+        };
+    }
+
+    private Catalog catalog(String hash, long size, CatalogReference... nested) {
+        Catalog catalog = mock(Catalog.class);
+        when(catalog.getHash()).thenReturn(hash);
+        when(catalog.databaseSize()).thenReturn(size);
+        when(catalog.listNested()).thenReturn(nested);
+        when(repository.acquireCatalog(hash)).thenReturn(catalog);
+        return catalog;
+    }
+
+    private static CatalogReference reference(String hash, int size) {
+        return new CatalogReference("/" + hash, hash, size);
+    }
+
+    @Test
+    public void retrievesLargestCatalogsFirst() {
+        catalog("a", 100);
+        catalog("b", 300, reference("d", 5));
+        catalog("c", 200);
+        catalog("d", 400);
+        Catalog root = catalog("root", 1000,
+                reference("a", 10), reference("b", 300), reference("c", 50));
+
+        CatalogTreeRetriever retriever = new CatalogTreeRetriever(repository, 1, listener);
+        Assert.assertTrue(retriever.retrieve(root));
+        Assert.assertEquals(Arrays.asList("b", "c", "a", "d"), retrieved);
+        Assert.assertEquals(Arrays.asList(300L, 500L, 600L, 1000L), progressBytes);
+        Assert.assertEquals(4, retriever.getRetrievedCatalogs());
+        Assert.assertEquals(1000, retriever.getRetrievedBytes());
+        Assert.assertEquals(0, retriever.getFailedCatalogs());
+        verify(repository, times(5)).releaseCatalog(any(Catalog.class));
+    }
+
+    @Test
+    public void countsFailedCatalogs() {
+        catalog("a", 100, reference("lost", 1));
+        Catalog broken = catalog("broken", 100);
+        when(broken.listNested()).thenThrow(new IllegalStateException("closed"));
+        Catalog root = catalog("root", 1000,
+                reference("a", 10), reference("broken", 20), reference("missing", 30));
+
+        CatalogTreeRetriever retriever = new CatalogTreeRetriever(repository, 4, listener);
+        Assert.assertFalse(retriever.retrieve(root));
+        Assert.assertEquals(3, retriever.getFailedCatalogs());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("broken", "missing", "lost")),
+                new HashSet<>(failed));
+        Assert.assertEquals(Arrays.asList("a"), retrieved);
+        Assert.assertEquals(1, retriever.getRetrievedCatalogs());
+        Assert.assertEquals(100, retriever.getRetrievedBytes());
+    }
+
+    @Test
+    public void listenerFailuresDoNotFailCatalogs() {
+        catalog("a", 100, reference("b", 1));
+        catalog("b", 200);
+        Catalog root = catalog("root", 1000, reference("a", 10));
+        CatalogTreeListener failingListener = new CatalogTreeListener() {
+            public void catalogRetrieved(Catalog catalog, int retrievedCatalogs,
+                                         long retrievedBytes) {
+                throw new IllegalStateException("listener bug");
+            }
+
+            public void catalogFailed(String catalogHash) {
+                failed.add(catalogHash);
+            }
+        };
+
+        CatalogTreeRetriever retriever = new CatalogTreeRetriever(repository, 1,
+                failingListener);
+        Assert.assertTrue(retriever.retrieve(root));
+        Assert.assertEquals(2, retriever.getRetrievedCatalogs());
+        Assert.assertEquals(300, retriever.getRetrievedBytes());
+        Assert.assertEquals(0, retriever.getFailedCatalogs());
+        Assert.assertTrue(failed.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoConcurrency() {
+        new CatalogTreeRetriever(repository, 0, listener);
+    }
+}
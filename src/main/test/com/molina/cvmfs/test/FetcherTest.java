@@ -0,0 +1,185 @@
+package com.molina.cvmfs.test;
+
+import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.fetcher.Fetcher;
+import com.molina.cvmfs.fetcher.LocalSourceBackend;
+import com.molina.cvmfs.fetcher.RawFileMetadata;
+import com.molina.cvmfs.fetcher.SourceBackend;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+
+public class FetcherTest {
+
+    private static final String TEST_PATH = "/tmp/cvmfs_test_fetcher";
+    private static final String TEST_REPOSITORY_PATH = TEST_PATH + "/repository";
+    private static final String TEST_CACHE_PATH = TEST_PATH + "/cache";
+
+    private CountingBackend backend;
+
+    /**
+     * Reads the repository from disk, counting the objects opened and how
+     * many of them are being opened at once
+     */
+    private static class CountingBackend implements SourceBackend {
+        private final SourceBackend backend;
+        private final long delay;
+        final AtomicInteger openedStreams = new AtomicInteger();
+        final AtomicInteger concurrentStreams = new AtomicInteger();
+        final AtomicInteger maxConcurrentStreams = new AtomicInteger();
+
+        CountingBackend(SourceBackend backend, long delay) {
+            this.backend = backend;
+            this.delay = delay;
+        }
+
+        public InputStream openStream(String fileName) throws IOException {
+            openedStreams.incrementAndGet();
+            int concurrent = concurrentStreams.incrementAndGet();
+            int max;
+            while ((max = maxConcurrentStreams.get()) < concurrent &&
+                    !maxConcurrentStreams.compareAndSet(max, concurrent)) {
+                // another stream updated the maximum meanwhile
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentStreams.decrementAndGet();
+            }
+            return backend.openStream(fileName);
+        }
+
+        public boolean downloadIfModified(String fileName, File destination,
+                                          RawFileMetadata metadata) throws IOException {
+            return backend.downloadIfModified(fileName, destination, metadata);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(new File(TEST_PATH));
+        new File(TEST_REPOSITORY_PATH).mkdirs();
+        new File(TEST_CACHE_PATH).mkdirs();
+        backend = new CountingBackend(new LocalSourceBackend(new File(TEST_REPOSITORY_PATH)), 200);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(TEST_PATH));
+    }
+
+    /**
+     * Stores a compressed object in the repository under its content hash
+     *
+     * @return the name of the object
+     */
+    private static String storeObject(int seed) throws Exception {
+        byte[] content = new byte[64 * 1024];
+        new Random(seed).nextBytes(content);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+        deflater.write(content);
+        deflater.close();
+        String hash = Common.binaryBufferToHexString(
+                MessageDigest.getInstance("SHA-1").digest(compressed.toByteArray()));
+        String fileName = "data" + File.separator + hash.substring(0, 2) +
+                File.separator + hash.substring(2);
+        File object = new File(TEST_REPOSITORY_PATH, fileName);
+        object.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(object);
+        fos.write(compressed.toByteArray());
+        fos.close();
+        return fileName;
+    }
+
+    @Test
+    public void coalescesConcurrentRetrievals() throws Exception {
+        final String fileName = storeObject(1);
+        final Fetcher fetcher = new Fetcher(backend, TEST_CACHE_PATH, 4);
+        ExecutorService requesters = Executors.newFixedThreadPool(8);
+        List<Future<File>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(requesters.submit(new Callable<File>() {
+                public File call() throws Exception {
+                    return fetcher.retrieveFile(fileName);
+                }
+            }));
+        }
+        for (Future<File> result : results)
+            Assert.assertEquals(new File(TEST_CACHE_PATH, fileName), result.get());
+        requesters.shutdown();
+        Assert.assertEquals(1, backend.openedStreams.get());
+        Assert.assertEquals(7, fetcher.getCoalescedDownloads());
+        fetcher.shutdown();
+    }
+
+    @Test
+    public void boundsConcurrentDownloads() throws Exception {
+        Fetcher fetcher = new Fetcher(backend, TEST_CACHE_PATH, 2);
+        List<Future<File>> downloads = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            downloads.add(fetcher.retrieveFileAsync(storeObject(i)));
+        for (Future<File> download : downloads)
+            Assert.assertTrue(download.get().isFile());
+        Assert.assertEquals(6, backend.openedStreams.get());
+        Assert.assertEquals(2, backend.maxConcurrentStreams.get());
+        Assert.assertEquals(0, fetcher.getActiveDownloads());
+        Assert.assertEquals(0, fetcher.getQueuedDownloads());
+        fetcher.shutdown();
+    }
+
+    private static Future<File> retrieveInBackground(final Fetcher fetcher,
+                                                     final String fileName) {
+        final FutureTask<File> retrieval = new FutureTask<>(new Callable<File>() {
+            public File call() throws Exception {
+                return fetcher.retrieveFile(fileName);
+            }
+        });
+        new Thread(retrieval).start();
+        return retrieval;
+    }
+
+    @Test
+    public void retrievalsWaitForStreamedObject() throws Exception {
+        String fileName = storeObject(1);
+        Fetcher fetcher = new Fetcher(backend, TEST_CACHE_PATH, 4);
+        InputStream stream = fetcher.openFile(fileName);
+        Future<File> retrieval = retrieveInBackground(fetcher, fileName);
+        Thread.sleep(100);
+        Assert.assertFalse(retrieval.isDone());
+        byte[] buffer = new byte[8192];
+        while (stream.read(buffer) != -1) {
+            // the stream stores the object in the cache
+        }
+        stream.close();
+        Assert.assertEquals(new File(TEST_CACHE_PATH, fileName), retrieval.get());
+        Assert.assertEquals(1, backend.openedStreams.get());
+        fetcher.shutdown();
+    }
+
+    @Test
+    public void retrievalsDownloadObjectWhenStreamIsAbandoned() throws Exception {
+        String fileName = storeObject(1);
+        Fetcher fetcher = new Fetcher(backend, TEST_CACHE_PATH, 4);
+        InputStream stream = fetcher.openFile(fileName);
+        Future<File> retrieval = retrieveInBackground(fetcher, fileName);
+        stream.read();
+        stream.close();
+        Assert.assertTrue(retrieval.get().isFile());
+        Assert.assertEquals(2, backend.openedStreams.get());
+        fetcher.shutdown();
+    }
+}
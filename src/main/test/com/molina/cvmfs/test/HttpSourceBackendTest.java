@@ -0,0 +1,106 @@
+package com.molina.cvmfs.test;
+
+import com.molina.cvmfs.fetcher.HttpSourceBackend;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+public class HttpSourceBackendTest {
+
+    private List<HttpServer> servers;
+    private Set<Integer> clientPorts;
+
+    @Before
+    public void setUp() {
+        servers = new ArrayList<>();
+        clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    }
+
+    @After
+    public void tearDown() {
+        for (HttpServer server : servers)
+            server.stop(0);
+    }
+
+    private String startMirror(final int status, final long delay) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = exchange.getRequestURI().getPath().getBytes();
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/repo";
+    }
+
+    private static String read(InputStream stream) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = stream.read()) != -1)
+            sb.append((char) c);
+        stream.close();
+        return sb.toString();
+    }
+
+    @Test
+    public void failover() throws IOException {
+        String broken = startMirror(500, 0);
+        String healthy = startMirror(200, 0);
+        HttpSourceBackend backend = new HttpSourceBackend(Arrays.asList(broken, healthy));
+        Assert.assertEquals("/repo/.cvmfspublished", read(backend.openStream(".cvmfspublished")));
+        HttpSourceBackend.Mirror first = backend.rankMirrors().get(0);
+        Assert.assertEquals(healthy, first.getBaseURL().toString());
+        Assert.assertEquals(1, backend.getMirrors().get(0).getFailures());
+    }
+
+    @Test
+    public void latencyRanking() throws IOException {
+        String slow = startMirror(200, 200);
+        String fast = startMirror(200, 0);
+        HttpSourceBackend backend = new HttpSourceBackend(Arrays.asList(slow, fast));
+        read(backend.openStream("data/00/a"));
+        // the slow mirror has been measured, the fast one is still unknown
+        Assert.assertEquals(fast, backend.rankMirrors().get(0).getBaseURL().toString());
+        read(backend.openStream("data/00/b"));
+        Assert.assertEquals(fast, backend.rankMirrors().get(0).getBaseURL().toString());
+        Assert.assertTrue(backend.getMirrors().get(0).getLatency() >
+                backend.getMirrors().get(1).getLatency());
+    }
+
+    @Test
+    public void keepAlive() throws IOException {
+        String mirror = startMirror(200, 0);
+        HttpSourceBackend backend = new HttpSourceBackend(mirror);
+        for (int i = 0; i < 10; i++)
+            read(backend.openStream("data/00/" + i));
+        Assert.assertEquals(1, clientPorts.size());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void notFound() throws IOException {
+        String mirror = startMirror(404, 0);
+        new HttpSourceBackend(mirror).openStream("data/00/missing");
+    }
+}
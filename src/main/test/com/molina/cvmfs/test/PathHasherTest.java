@@ -0,0 +1,89 @@
+package com.molina.cvmfs.test;
+
+import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.common.PathHash;
+import com.molina.cvmfs.common.PathHasher;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.security.MessageDigest;
+
+public class PathHasherTest {
+
+    private static final String PATH = "/software/x86_64/gcc/4.9.3/lib/libstdc++.so.6";
+    private static final int ITERATIONS = 100000;
+
+    @Test
+    public void canonicalizePath() {
+        Assert.assertEquals("", Common.canonicalizePath(null));
+        Assert.assertEquals("", Common.canonicalizePath(""));
+        Assert.assertEquals("/", Common.canonicalizePath("/"));
+        Assert.assertEquals("/", Common.canonicalizePath("//"));
+        Assert.assertEquals("/a/b", Common.canonicalizePath("/a//b/"));
+        Assert.assertEquals("/a/b", Common.canonicalizePath("/a/./b/."));
+        Assert.assertEquals("/b", Common.canonicalizePath("/a/../b"));
+        Assert.assertEquals("/", Common.canonicalizePath("/a/../.."));
+        Assert.assertEquals("a/c", Common.canonicalizePath("./a/b/../c"));
+        Assert.assertEquals("../a", Common.canonicalizePath("../a"));
+        Assert.assertEquals("/a b/c?d#e", Common.canonicalizePath("/a b/c?d#e"));
+        Assert.assertEquals("/.a/..b/c..", Common.canonicalizePath("/.a/..b/c.."));
+        Assert.assertSame(PATH, Common.canonicalizePath(PATH));
+    }
+
+    @Test
+    public void hashMatchesMessageDigest() throws Exception {
+        for (String path : new String[]{"", "/", PATH, "/caf\u00e9/\u20ac/\ud83d\ude00"}) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            PathHash expected = Common.splitMd5(md.digest(path.getBytes("UTF-8")));
+            PathHasher hasher = PathHasher.get().hash(path);
+            Assert.assertEquals(expected.getHash1(), hasher.getHash1());
+            Assert.assertEquals(expected.getHash2(), hasher.getHash2());
+            Assert.assertEquals(expected, hasher.toPathHash());
+        }
+    }
+
+    /**
+     * Measures the bytes allocated per lookup hash by the previous way of
+     * hashing paths and by PathHasher
+     */
+    @Test
+    public void allocationsPerLookup() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the code
+            long previousHashes = 0;
+            long start = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                String realPath = new URI(PATH).normalize().getPath();
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                previousHashes += Common.splitMd5(md.digest(realPath.getBytes())).getHash1();
+            }
+            long previous = (threads.getThreadAllocatedBytes(threadId) - start) / ITERATIONS;
+
+            long currentHashes = 0;
+            start = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                String realPath = Common.canonicalizePath(PATH);
+                currentHashes += PathHasher.get().hash(realPath).getHash1();
+            }
+            long current = (threads.getThreadAllocatedBytes(threadId) - start) / ITERATIONS;
+
+            Assert.assertEquals(previousHashes, currentHashes);
+            if (round == 1) {
+                Assert.assertTrue("PathHasher allocates " + current + " bytes per path",
+                        current < 16);
+                Assert.assertTrue("PathHasher allocates " + current + " bytes per path, " +
+                        previous + " before", current < previous);
+            }
+        }
+    }
+}
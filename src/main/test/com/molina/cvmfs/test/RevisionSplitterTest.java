@@ -0,0 +1,89 @@
+package com.molina.cvmfs.test;
+
+import com.molina.cvmfs.catalog.Catalog;
+import com.molina.cvmfs.catalog.CatalogReference;
+import com.molina.cvmfs.catalog.exception.CatalogReadException;
+import com.molina.cvmfs.directoryentry.DirectoryEntry;
+import com.molina.cvmfs.repository.Repository;
+import com.molina.cvmfs.revision.Revision;
+import com.molina.cvmfs.revision.RevisionSplitter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.sql.SQLException;
+
+import static org.mockito.Mockito.*;
+
+public class RevisionSplitterTest {
+
+    private Repository repository;
+    private Revision revision;
+
+    @Before
+    public void setUp() {
+        repository = mock(Repository.class);
+        revision = mock(Revision.class);
+        when(revision.getRepository()).thenReturn(repository);
+        when(revision.getRootHash()).thenReturn("root");
+    }
+
+    /**
+     * Mocks a root catalog whose directories cannot be read
+     */
+    private Catalog rootCatalog(boolean rootIsDirectory, CatalogReference... nested) {
+        Catalog catalog = mock(Catalog.class, new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                // readDirectory is not visible from here to be stubbed
+                if (invocation.getMethod().getName().equals("readDirectory"))
+                    throw new SQLException("closed");
+                return RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+        DirectoryEntry root = mock(DirectoryEntry.class);
+        when(root.isDirectory()).thenReturn(rootIsDirectory);
+        when(catalog.getHash()).thenReturn("root");
+        when(catalog.isRoot()).thenReturn(true);
+        when(catalog.findDirectoryEntry("")).thenReturn(root);
+        when(catalog.listNested()).thenReturn(nested);
+        when(repository.acquireCatalog("root")).thenReturn(catalog);
+        return catalog;
+    }
+
+    @Test(expected = CatalogReadException.class)
+    public void failsWhenRootCatalogCannotBeOpened() {
+        new RevisionSplitter(revision);
+    }
+
+    @Test
+    public void failsWhenNestedCatalogCannotBeOpened() {
+        Catalog root = rootCatalog(false, new CatalogReference("/nested", "nested", 0));
+        RevisionSplitter splitter = new RevisionSplitter(revision);
+        Assert.assertTrue(splitter.hasNext());
+        splitter.next();
+        try {
+            splitter.hasNext();
+            Assert.fail("the nested catalog was skipped");
+        } catch (CatalogReadException e) {
+            Assert.assertTrue(e.getMessage().contains("nested"));
+        }
+        splitter.close();
+        verify(repository).releaseCatalog(root);
+    }
+
+    @Test
+    public void failsWhenDirectoryCannotBeRead() {
+        Catalog root = rootCatalog(true);
+        RevisionSplitter splitter = new RevisionSplitter(revision);
+        try {
+            splitter.next();
+            Assert.fail("the directory was skipped");
+        } catch (CatalogReadException e) {
+            Assert.assertTrue(e.getCause() instanceof SQLException);
+        }
+        splitter.close();
+        verify(repository).releaseCatalog(root);
+    }
+}
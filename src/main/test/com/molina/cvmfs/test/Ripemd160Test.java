@@ -0,0 +1,38 @@
+package com.molina.cvmfs.test;
+
+import com.molina.cvmfs.common.Common;
+import com.molina.cvmfs.common.Ripemd160;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class Ripemd160Test {
+
+    private static String hash(String message) {
+        Ripemd160 digest = new Ripemd160();
+        digest.update(message.getBytes());
+        return Common.binaryBufferToHexString(digest.digest());
+    }
+
+    @Test
+    public void testVectors() {
+        Assert.assertEquals("9c1185a5c5e9fc54612808977ee8f548b2258d31", hash(""));
+        Assert.assertEquals("8eb208f7e05d987a9b044a8e98c6b087f15a0bfc", hash("abc"));
+        Assert.assertEquals("5d0689ef49d2fae572b881b123a85ffa21595f36",
+                hash("message digest"));
+        Assert.assertEquals("12a053384a9c0c88e405a06c27dcf49ada62eb2b",
+                hash("abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq"));
+    }
+
+    @Test
+    public void millionCharacters() {
+        Ripemd160 digest = new Ripemd160();
+        byte[] block = new byte[1000];
+        Arrays.fill(block, (byte) 'a');
+        for (int i = 0; i < 1000; i++)
+            digest.update(block, 0, block.length);
+        Assert.assertEquals("52783243c1697bdbe16d37f97f68f08325dc1528",
+                Common.binaryBufferToHexString(digest.digest()));
+    }
+}